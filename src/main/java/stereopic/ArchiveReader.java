@@ -0,0 +1,296 @@
+/*
+ * Copyright 2011 Yusuke Yamamoto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stereopic;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Reads the files in a zip, tar or gzipped tar archive in a single sequential pass, without extracting them to disk.
+ *
+ * @author Yusuke Yamamoto - yusuke at mac.com
+ */
+abstract class ArchiveReader implements Closeable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * @return true if the file name carries a .zip, .tar, .tgz or .tar.gz extension
+     */
+    static boolean isArchive(File file) {
+        return null != getFormat(file.getName());
+    }
+
+    static ArchiveReader open(File file) throws IOException {
+        String format = getFormat(file.getName());
+        if (null == format) {
+            throw new IOException("not an archive:" + file);
+        }
+        InputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+        try {
+            if ("zip".equals(format)) {
+                return new Zip(in);
+            }
+            return new Tar("tar".equals(format) ? in : new GZIPInputStream(in, BUFFER_SIZE));
+        } catch (IOException ioe) {
+            in.close();
+            throw ioe;
+        }
+    }
+
+    /**
+     * @return zip, tar or tgz, or null if the name is not an archive
+     */
+    static String getFormat(String name) {
+        String lowerCase = name.toLowerCase();
+        if (lowerCase.endsWith(".zip")) {
+            return "zip";
+        } else if (lowerCase.endsWith(".tar")) {
+            return "tar";
+        } else if (lowerCase.endsWith(".tgz") || lowerCase.endsWith(".tar.gz")) {
+            return "tgz";
+        }
+        return null;
+    }
+
+    /**
+     * Skips the rest of the current entry, and directories and links up to the next file.
+     *
+     * @return path of the next file in the archive, or null at the end of the archive
+     */
+    abstract String next() throws IOException;
+
+    /**
+     * @return content of the current file. Can be called once per file.
+     */
+    abstract byte[] read() throws IOException;
+
+    private static class Zip extends ArchiveReader {
+        private final ZipInputStream in;
+        private ZipEntry entry;
+
+        Zip(InputStream in) {
+            this.in = new ZipInputStream(in);
+        }
+
+        String next() throws IOException {
+            while (null != (entry = in.getNextEntry())) {
+                if (!entry.isDirectory()) {
+                    return entry.getName();
+                }
+            }
+            return null;
+        }
+
+        byte[] read() throws IOException {
+            if (entry.getSize() >= 0 && entry.getSize() <= Integer.MAX_VALUE) {
+                byte[] content = new byte[(int) entry.getSize()];
+                new DataInputStream(in).readFully(content);
+                return content;
+            }
+            // streamed entries carry their size after the data
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            byte[] buf = new byte[BUFFER_SIZE];
+            int count;
+            while (-1 != (count = in.read(buf))) {
+                baos.write(buf, 0, count);
+            }
+            return baos.toByteArray();
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * POSIX ustar, with GNU long names and pax path records.
+     */
+    private static class Tar extends ArchiveReader {
+        private static final int BLOCK = 512;
+        private final DataInputStream in;
+        private final byte[] header = new byte[BLOCK];
+        // bytes of the current entry not read yet, and the padding to the next block
+        private long remaining = 0;
+        private long padding = 0;
+
+        Tar(InputStream in) {
+            this.in = new DataInputStream(in);
+        }
+
+        String next() throws IOException {
+            skip(remaining + padding);
+            remaining = 0;
+            padding = 0;
+            String longName = null;
+            while (true) {
+                try {
+                    in.readFully(header);
+                } catch (EOFException eof) {
+                    return null;
+                }
+                if (isZero(header)) {
+                    // end of archive
+                    return null;
+                }
+                long size = number(header, 124, 12);
+                char type = (char) header[156];
+                if ('L' == type || 'x' == type) {
+                    byte[] content = readPadded(size);
+                    String name = 'L' == type ? string(content, 0, content.length) : paxPath(content);
+                    if (null != name) {
+                        longName = name;
+                    }
+                    continue;
+                }
+                String name = null != longName ? longName : name(header);
+                longName = null;
+                remaining = size;
+                padding = (BLOCK - size % BLOCK) % BLOCK;
+                if ('0' == type || 0 == type || '7' == type) {
+                    return name;
+                }
+                skip(remaining + padding);
+                remaining = 0;
+                padding = 0;
+            }
+        }
+
+        byte[] read() throws IOException {
+            if (remaining > Integer.MAX_VALUE) {
+                throw new IOException("entry too large:" + remaining);
+            }
+            byte[] content = new byte[(int) remaining];
+            in.readFully(content);
+            remaining = 0;
+            return content;
+        }
+
+        private byte[] readPadded(long size) throws IOException {
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("header too large:" + size);
+            }
+            byte[] content = new byte[(int) size];
+            in.readFully(content);
+            skip((BLOCK - size % BLOCK) % BLOCK);
+            return content;
+        }
+
+        private void skip(long count) throws IOException {
+            while (count > 0) {
+                long skipped = in.skip(count);
+                if (skipped <= 0) {
+                    if (in.read() < 0) {
+                        throw new EOFException("truncated tar archive");
+                    }
+                    skipped = 1;
+                }
+                count -= skipped;
+            }
+        }
+
+        private static String name(byte[] header) throws UnsupportedEncodingException {
+            String name = string(header, 0, 100);
+            if ("ustar".equals(string(header, 257, 6))) {
+                String prefix = string(header, 345, 155);
+                if (prefix.length() > 0) {
+                    name = prefix + "/" + name;
+                }
+            }
+            return name;
+        }
+
+        /**
+         * @return value of the path record, or null if there is none
+         */
+        private static String paxPath(byte[] content) throws IOException {
+            int offset = 0;
+            while (offset < content.length) {
+                int space = offset;
+                while (space < content.length && ' ' != content[space]) {
+                    space++;
+                }
+                int length;
+                try {
+                    length = Integer.parseInt(string(content, offset, space - offset));
+                } catch (NumberFormatException nfe) {
+                    throw new IOException("corrupt pax header:" + nfe.getMessage());
+                }
+                // the record must hold at least the space and the newline after the length
+                if (offset + length < space + 2 || offset + length > content.length) {
+                    throw new IOException("broken pax header");
+                }
+                // "length key=value\n"
+                String record = new String(content, space + 1, offset + length - space - 2, "UTF-8");
+                if (record.startsWith("path=")) {
+                    return record.substring(5);
+                }
+                offset += length;
+            }
+            return null;
+        }
+
+        /**
+         * @return octal number, or a base-256 number if the top bit of the field is set
+         */
+        private static long number(byte[] header, int offset, int length) throws IOException {
+            if ((header[offset] & 0x80) != 0) {
+                long value = header[offset] & 0x7f;
+                for (int i = 1; i < length; i++) {
+                    value = (value << 8) | (header[offset + i] & 0xff);
+                }
+                return value;
+            }
+            String octal = string(header, offset, length).trim();
+            try {
+                return 0 == octal.length() ? 0 : Long.parseLong(octal, 8);
+            } catch (NumberFormatException nfe) {
+                throw new IOException("broken tar header:" + octal);
+            }
+        }
+
+        private static String string(byte[] bytes, int offset, int length) throws UnsupportedEncodingException {
+            int end = offset;
+            while (end < offset + length && 0 != bytes[end]) {
+                end++;
+            }
+            return new String(bytes, offset, end - offset, "UTF-8");
+        }
+
+        private static boolean isZero(byte[] block) {
+            for (byte b : block) {
+                if (0 != b) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2011 Yusuke Yamamoto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stereopic;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes generated files into a zip, tar or gzipped tar archive as a single sequential stream.<br>
+ * Entries are written whole, one at a time, so concurrent conversions can share a writer.
+ *
+ * @author Yusuke Yamamoto - yusuke at mac.com
+ */
+abstract class ArchiveWriter implements Closeable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final byte[] buf = new byte[BUFFER_SIZE];
+
+    /**
+     * @param file archive to be created, its format chosen by extension
+     */
+    static ArchiveWriter open(File file) throws IOException {
+        String format = ArchiveReader.getFormat(file.getName());
+        if (null == format) {
+            throw new IOException("not an archive:" + file);
+        }
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+        try {
+            if ("zip".equals(format)) {
+                return new Zip(out);
+            }
+            return new Tar("tar".equals(format) ? out : new GZIPOutputStream(out, BUFFER_SIZE));
+        } catch (IOException ioe) {
+            out.close();
+            throw ioe;
+        }
+    }
+
+    /**
+     * @param name     path in the archive, separated by '/'
+     * @param contents content of the entry, from position to limit of each buffer. The buffers are not modified.
+     */
+    synchronized void write(String name, ByteBuffer[] contents) throws IOException {
+        long size = 0;
+        for (ByteBuffer content : contents) {
+            size += content.remaining();
+        }
+        putEntry(name, contents, size);
+    }
+
+    abstract void putEntry(String name, ByteBuffer[] contents, long size) throws IOException;
+
+    void copy(ByteBuffer[] contents, OutputStream out) throws IOException {
+        for (ByteBuffer content : contents) {
+            ByteBuffer src = content.duplicate();
+            while (src.hasRemaining()) {
+                int count = Math.min(buf.length, src.remaining());
+                src.get(buf, 0, count);
+                out.write(buf, 0, count);
+            }
+        }
+    }
+
+    /**
+     * Entries are stored; JPEG, GIF, PNG and AVI hardly deflate, and the bytes stay as generated.
+     */
+    private static class Zip extends ArchiveWriter {
+        private final ZipOutputStream out;
+
+        Zip(OutputStream out) {
+            this.out = new ZipOutputStream(out);
+        }
+
+        void putEntry(String name, ByteBuffer[] contents, long size) throws IOException {
+            CRC32 crc = new CRC32();
+            for (ByteBuffer content : contents) {
+                ByteBuffer src = content.duplicate();
+                byte[] chunk = new byte[Math.min(BUFFER_SIZE, src.remaining())];
+                while (src.hasRemaining()) {
+                    int count = Math.min(chunk.length, src.remaining());
+                    src.get(chunk, 0, count);
+                    crc.update(chunk, 0, count);
+                }
+            }
+            ZipEntry entry = new ZipEntry(name);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(size);
+            entry.setCompressedSize(size);
+            entry.setCrc(crc.getValue());
+            out.putNextEntry(entry);
+            copy(contents, out);
+            out.closeEntry();
+        }
+
+        public synchronized void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * POSIX ustar. Names that do not fit the name and prefix fields are written as GNU long names.
+     */
+    private static class Tar extends ArchiveWriter {
+        private static final int BLOCK = 512;
+        // tar pads the archive to records of 20 blocks
+        private static final int RECORD = 20 * BLOCK;
+        private final OutputStream out;
+        private long written = 0;
+
+        Tar(OutputStream out) {
+            this.out = out;
+        }
+
+        void putEntry(String name, ByteBuffer[] contents, long size) throws IOException {
+            byte[] path = name.getBytes("UTF-8");
+            int split = splitIndex(path);
+            if (path.length > 100 && split < 0) {
+                writeHeader("././@LongLink".getBytes("UTF-8"), null, path.length + 1, 'L');
+                byte[] longName = new byte[path.length + 1];
+                System.arraycopy(path, 0, longName, 0, path.length);
+                write(longName, 0, longName.length);
+                pad();
+                byte[] truncated = new byte[100];
+                System.arraycopy(path, 0, truncated, 0, 100);
+                writeHeader(truncated, null, size, '0');
+            } else if (path.length > 100) {
+                byte[] prefix = new byte[split];
+                System.arraycopy(path, 0, prefix, 0, split);
+                byte[] rest = new byte[path.length - split - 1];
+                System.arraycopy(path, split + 1, rest, 0, rest.length);
+                writeHeader(rest, prefix, size, '0');
+            } else {
+                writeHeader(path, null, size, '0');
+            }
+            copy(contents, out);
+            written += size;
+            pad();
+        }
+
+        /**
+         * @return index of the '/' splitting the path into a prefix of up to 155 bytes and a name of up to 100,
+         * or -1 if there is none
+         */
+        private static int splitIndex(byte[] path) {
+            for (int i = Math.min(155, path.length - 1); i >= path.length - 101 && i > 0; i--) {
+                if ('/' == path[i]) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private void writeHeader(byte[] name, byte[] prefix, long size, char type) throws IOException {
+            byte[] header = new byte[BLOCK];
+            System.arraycopy(name, 0, header, 0, name.length);
+            octal(header, 100, 8, 0644);
+            octal(header, 108, 8, 0);
+            octal(header, 116, 8, 0);
+            octal(header, 124, 12, size);
+            octal(header, 136, 12, System.currentTimeMillis() / 1000);
+            header[156] = (byte) type;
+            System.arraycopy("ustar\u000000".getBytes("US-ASCII"), 0, header, 257, 8);
+            if (null != prefix) {
+                System.arraycopy(prefix, 0, header, 345, prefix.length);
+            }
+            // the checksum is computed with its own field filled with spaces
+            for (int i = 148; i < 156; i++) {
+                header[i] = ' ';
+            }
+            long checksum = 0;
+            for (byte b : header) {
+                checksum += b & 0xff;
+            }
+            octal(header, 148, 7, checksum);
+            write(header, 0, BLOCK);
+        }
+
+        /**
+         * Writes value as zero padded octal digits followed by a NUL.
+         */
+        private static void octal(byte[] header, int offset, int length, long value) {
+            String digits = Long.toOctalString(value);
+            int zeros = length - 1 - digits.length();
+            for (int i = 0; i < zeros; i++) {
+                header[offset + i] = '0';
+            }
+            for (int i = 0; i < digits.length(); i++) {
+                header[offset + zeros + i] = (byte) digits.charAt(i);
+            }
+            header[offset + length - 1] = 0;
+        }
+
+        private void write(byte[] bytes, int offset, int length) throws IOException {
+            out.write(bytes, offset, length);
+            written += length;
+        }
+
+        private void pad() throws IOException {
+            int padding = (int) ((BLOCK - written % BLOCK) % BLOCK);
+            write(new byte[padding], 0, padding);
+        }
+
+        public synchronized void close() throws IOException {
+            try {
+                // two zero blocks end the archive
+                write(new byte[2 * BLOCK], 0, 2 * BLOCK);
+                int padding = (int) ((RECORD - written % RECORD) % RECORD);
+                write(new byte[padding], 0, padding);
+            } finally {
+                out.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2011 Yusuke Yamamoto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stereopic;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads a {@link ByteBuffer} from its position to its limit without copying it.
+ *
+ * @author Yusuke Yamamoto - yusuke at mac.com
+ */
+class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buf;
+    private int mark;
+
+    ByteBufferInputStream(ByteBuffer buf) {
+        this.buf = buf.duplicate();
+        this.mark = this.buf.position();
+    }
+
+    @Override
+    public int read() {
+        return buf.hasRemaining() ? buf.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (len == 0) {
+            return 0;
+        }
+        if (!buf.hasRemaining()) {
+            return -1;
+        }
+        len = Math.min(len, buf.remaining());
+        buf.get(b, off, len);
+        return len;
+    }
+
+    @Override
+    public long skip(long n) {
+        int skipped = (int) Math.max(0, Math.min(n, buf.remaining()));
+        buf.position(buf.position() + skipped);
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return buf.remaining();
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+        mark = buf.position();
+    }
+
+    @Override
+    public synchronized void reset() {
+        buf.position(mark);
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2011 Yusuke Yamamoto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stereopic;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+
+/**
+ * Matches the exposure and color of one frame to another by histogram specification.<br>
+ * Per channel histograms are taken on a sparse grid, turned into lookup tables mapping the target's levels onto the
+ * reference's, and applied to the target in place in a single table driven pass.
+ *
+ * @author Yusuke Yamamoto - yusuke at mac.com
+ */
+final class ColorMatcher {
+    /**
+     * histograms are taken from about this many pixels, however large the frame is
+     */
+    private static final int SAMPLES = 64 * 1024;
+
+    private ColorMatcher() {
+    }
+
+    /**
+     * Adjusts target so that its red, green and blue histograms follow those of reference.
+     *
+     * @param target modified in place
+     */
+    static void match(BufferedImage reference, BufferedImage target) {
+        int[][] referenceHistogram = histogram(reference);
+        int[][] targetHistogram = histogram(target);
+        byte[][] lut = new byte[3][];
+        for (int channel = 0; channel < 3; channel++) {
+            lut[channel] = lut(targetHistogram[channel], referenceHistogram[channel]);
+        }
+        apply(target, lut);
+    }
+
+    /**
+     * @return histograms of red, green and blue
+     */
+    static int[][] histogram(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int step = Math.max(1, (int) Math.sqrt((double) width * height / SAMPLES));
+        int[][] histogram = new int[3][256];
+        int[] red = histogram[0];
+        int[] green = histogram[1];
+        int[] blue = histogram[2];
+        if (isInterleavedRGB(image)) {
+            Raster raster = image.getRaster();
+            PixelInterleavedSampleModel sampleModel = (PixelInterleavedSampleModel) raster.getSampleModel();
+            int[] offsets = sampleModel.getBandOffsets();
+            int stride = sampleModel.getPixelStride();
+            int scanline = sampleModel.getScanlineStride();
+            byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+            int offset = raster.getDataBuffer().getOffset();
+            for (int y = step / 2; y < height; y += step) {
+                int end = offset + (y + 1) * scanline;
+                for (int i = offset + y * scanline + step / 2 * stride; i < end; i += step * stride) {
+                    red[data[i + offsets[0]] & 0xff]++;
+                    green[data[i + offsets[1]] & 0xff]++;
+                    blue[data[i + offsets[2]] & 0xff]++;
+                }
+            }
+            return histogram;
+        }
+        int[] row = new int[width];
+        for (int y = step / 2; y < height; y += step) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            for (int x = step / 2; x < width; x += step) {
+                int rgb = row[x];
+                red[(rgb >> 16) & 0xff]++;
+                green[(rgb >> 8) & 0xff]++;
+                blue[rgb & 0xff]++;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * @return table mapping each level of source to the lowest level of reference reaching the same cumulative share
+     */
+    static byte[] lut(int[] source, int[] reference) {
+        long sourceTotal = 0;
+        long referenceTotal = 0;
+        for (int i = 0; i < 256; i++) {
+            sourceTotal += source[i];
+            referenceTotal += reference[i];
+        }
+        byte[] lut = new byte[256];
+        if (0 == sourceTotal || 0 == referenceTotal) {
+            for (int i = 0; i < 256; i++) {
+                lut[i] = (byte) i;
+            }
+            return lut;
+        }
+        long sourceCumulative = 0;
+        long referenceCumulative = reference[0];
+        int level = 0;
+        for (int i = 0; i < 256; i++) {
+            // map the middle of each source bin, compared without division
+            sourceCumulative += source[i];
+            long sourceShare = (2 * sourceCumulative - source[i]) * referenceTotal;
+            while (level < 255 && 2 * referenceCumulative * sourceTotal < sourceShare) {
+                referenceCumulative += reference[++level];
+            }
+            lut[i] = (byte) level;
+        }
+        return lut;
+    }
+
+    /**
+     * @return true if the image is stored as whole rows of interleaved sRGB bytes, such as TYPE_3BYTE_BGR
+     */
+    private static boolean isInterleavedRGB(BufferedImage image) {
+        Raster raster = image.getRaster();
+        if (!(raster.getDataBuffer() instanceof DataBufferByte)
+                || !(raster.getSampleModel() instanceof PixelInterleavedSampleModel)
+                || raster.getNumBands() < 3 || !image.getColorModel().getColorSpace().isCS_sRGB()
+                || null != raster.getParent()) {
+            return false;
+        }
+        PixelInterleavedSampleModel sampleModel = (PixelInterleavedSampleModel) raster.getSampleModel();
+        return sampleModel.getScanlineStride() == sampleModel.getPixelStride() * sampleModel.getWidth();
+    }
+
+    /**
+     * Rewrites every sample through the tables. Interleaved byte and packed int rasters are rewritten directly;
+     * other layouts go through getRGB and setRGB.
+     */
+    private static void apply(BufferedImage image, byte[][] lut) {
+        Raster raster = image.getRaster();
+        DataBuffer buffer = raster.getDataBuffer();
+        if (isInterleavedRGB(image)) {
+            PixelInterleavedSampleModel sampleModel = (PixelInterleavedSampleModel) raster.getSampleModel();
+            int[] offsets = sampleModel.getBandOffsets();
+            int stride = sampleModel.getPixelStride();
+            byte[] data = ((DataBufferByte) buffer).getData();
+            int end = buffer.getOffset() + image.getHeight() * sampleModel.getScanlineStride();
+            for (int band = 0; band < 3; band++) {
+                byte[] table = lut[band];
+                for (int i = buffer.getOffset() + offsets[band]; i < end; i += stride) {
+                    data[i] = table[data[i] & 0xff];
+                }
+            }
+        } else if (buffer instanceof DataBufferInt && raster.getSampleModel() instanceof SinglePixelPackedSampleModel
+                && (image.getType() == BufferedImage.TYPE_INT_RGB || image.getType() == BufferedImage.TYPE_INT_ARGB)) {
+            int[] data = ((DataBufferInt) buffer).getData();
+            byte[] red = lut[0];
+            byte[] green = lut[1];
+            byte[] blue = lut[2];
+            for (int i = 0; i < data.length; i++) {
+                int rgb = data[i];
+                data[i] = (rgb & 0xff000000) | (red[(rgb >> 16) & 0xff] & 0xff) << 16
+                        | (green[(rgb >> 8) & 0xff] & 0xff) << 8 | (blue[rgb & 0xff] & 0xff);
+            }
+        } else {
+            int width = image.getWidth();
+            int[] row = new int[width];
+            for (int y = 0; y < image.getHeight(); y++) {
+                image.getRGB(0, y, width, 1, row, 0, width);
+                for (int x = 0; x < width; x++) {
+                    int rgb = row[x];
+                    row[x] = (rgb & 0xff000000) | (lut[0][(rgb >> 16) & 0xff] & 0xff) << 16
+                            | (lut[1][(rgb >> 8) & 0xff] & 0xff) << 8 | (lut[2][rgb & 0xff] & 0xff);
+                }
+                image.setRGB(0, y, width, 1, row, 0, width);
+            }
+        }
+    }
+}
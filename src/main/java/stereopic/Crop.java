@@ -0,0 +1,85 @@
+/*
+ * Copyright 2011 Yusuke Yamamoto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stereopic;
+
+import java.awt.*;
+
+/**
+ * Centered region of a frame, kept when decoding so that the rest of the frame is never converted.
+ *
+ * @author Yusuke Yamamoto - yusuke at mac.com
+ */
+final class Crop {
+    private final double scale;
+    private final int aspectWidth;
+    private final int aspectHeight;
+
+    /**
+     * @param scale        share of the width and the height kept, greater than 0 and up to 1
+     * @param aspectWidth  width of the aspect ratio of the region, or 0 to keep the aspect ratio of the frame
+     * @param aspectHeight height of the aspect ratio of the region, or 0 to keep the aspect ratio of the frame
+     */
+    Crop(double scale, int aspectWidth, int aspectHeight) {
+        if (!(scale > 0 && scale <= 1)) {
+            // also rejects NaN
+            throw new IllegalArgumentException("scale must be greater than 0 and up to 1:" + scale);
+        }
+        if (aspectWidth < 0 || aspectHeight < 0 || (aspectWidth == 0) != (aspectHeight == 0)) {
+            throw new IllegalArgumentException("illegal aspect ratio:" + aspectWidth + ":" + aspectHeight);
+        }
+        this.scale = scale;
+        this.aspectWidth = aspectWidth;
+        this.aspectHeight = aspectHeight;
+    }
+
+    /**
+     * @param scale  share of the width and the height kept, or null for the whole frame
+     * @param aspect aspect ratio like "1:1" or "16:9", or null to keep the aspect ratio of the frame
+     */
+    static Crop parse(String scale, String aspect) {
+        int aspectWidth = 0;
+        int aspectHeight = 0;
+        if (null != aspect) {
+            int colon = aspect.indexOf(':');
+            if (-1 == colon) {
+                throw new IllegalArgumentException("aspect ratio must be like 1:1 :" + aspect);
+            }
+            aspectWidth = Integer.parseInt(aspect.substring(0, colon).trim());
+            aspectHeight = Integer.parseInt(aspect.substring(colon + 1).trim());
+        }
+        return new Crop(null != scale ? Double.parseDouble(scale) : 1, aspectWidth, aspectHeight);
+    }
+
+    /**
+     * @return the largest region centered in the scaled frame with the aspect ratio, at least 1 pixel square
+     */
+    Rectangle regionOf(int width, int height) {
+        int regionWidth = Math.max(1, (int) Math.round(width * scale));
+        int regionHeight = Math.max(1, (int) Math.round(height * scale));
+        if (0 != aspectWidth) {
+            if ((long) regionWidth * aspectHeight > (long) regionHeight * aspectWidth) {
+                regionWidth = Math.max(1, (int) ((long) regionHeight * aspectWidth / aspectHeight));
+            } else {
+                regionHeight = Math.max(1, (int) ((long) regionWidth * aspectHeight / aspectWidth));
+            }
+        }
+        return new Rectangle((width - regionWidth) / 2, (height - regionHeight) / 2, regionWidth, regionHeight);
+    }
+
+    public String toString() {
+        return scale + ":" + aspectWidth + ":" + aspectHeight;
+    }
+}
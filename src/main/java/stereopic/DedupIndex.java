@@ -0,0 +1,180 @@
+/*
+ * Copyright 2011 Yusuke Yamamoto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stereopic;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Remembers MPO files already converted, by the content of their frames, so that copies under other names, in
+ * other directories or in other archives are not converted again.<br>
+ * Each frame's byte range is hashed with SHA-256 straight from the mapped file, without decoding; the conversion is
+ * keyed by a hash of the frame hashes and of the requested outputs, truncated to {@value #KEY_LENGTH} bytes. Keys
+ * are appended to the index file as soon as a file is converted, each followed by the path it was converted from.
+ *
+ * @author Yusuke Yamamoto - yusuke at mac.com
+ */
+class DedupIndex implements Closeable {
+    private final static Logger LOG = LoggerFactory.getLogger(DedupIndex.class);
+
+    static final int KEY_LENGTH = 16;
+
+    private static final int MAGIC = 0x53474458;
+    private static final int VERSION = 1;
+
+    private final Map<ByteBuffer, String> converted = new HashMap<ByteBuffer, String>();
+    private final FileOutputStream out;
+
+    /**
+     * Loads the index, creating it if it does not exist. A record cut short by an interrupted run, or
+     * corrupt, is dropped with everything after it.
+     */
+    DedupIndex(File file) throws IOException {
+        long valid = 0;
+        if (file.exists() && file.length() > 0) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    throw new IOException("not a dedup index:" + file);
+                }
+                valid = 8;
+                while (true) {
+                    byte[] key = new byte[KEY_LENGTH];
+                    in.readFully(key);
+                    String path = in.readUTF();
+                    converted.put(ByteBuffer.wrap(key), path);
+                    valid += KEY_LENGTH + 2 + utfLength(path);
+                }
+            } catch (EOFException eof) {
+                // end of the index, or a truncated record
+            } catch (IOException ioe) {
+                if (0 == valid) {
+                    throw ioe;
+                }
+                // a corrupt record, dropped with everything after it like a truncated one
+            } finally {
+                in.close();
+            }
+        }
+        if (valid < file.length()) {
+            LOG.warn(file + ": dropping a truncated or corrupt record at " + valid);
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(valid);
+            } finally {
+                raf.close();
+            }
+        }
+        out = new FileOutputStream(file, true);
+        if (0 == valid) {
+            ByteArrayOutputStream header = new ByteArrayOutputStream(8);
+            DataOutputStream dos = new DataOutputStream(header);
+            dos.writeInt(MAGIC);
+            dos.writeInt(VERSION);
+            out.write(header.toByteArray());
+        }
+    }
+
+    /**
+     * @param frames  byte ranges of the frames, from position to limit. The buffers are not modified.
+     * @param outputs description of the requested outputs and options, so that other outputs are not skipped
+     * @return key identifying the conversion by the content of the frames and the outputs
+     */
+    static byte[] key(ByteBuffer[] frames, String outputs) {
+        MessageDigest file = sha256();
+        MessageDigest frame = sha256();
+        for (ByteBuffer content : frames) {
+            frame.update(content.duplicate());
+            file.update(frame.digest());
+        }
+        try {
+            file.update(outputs.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException uee) {
+            throw new AssertionError(uee);
+        }
+        byte[] key = new byte[KEY_LENGTH];
+        System.arraycopy(file.digest(), 0, key, 0, KEY_LENGTH);
+        return key;
+    }
+
+    /**
+     * @return path of the file converted with the same frames, or null if none was
+     */
+    synchronized String get(byte[] key) {
+        return converted.get(ByteBuffer.wrap(key));
+    }
+
+    /**
+     * Records that the file has been converted. Keys already recorded are kept with their first path.
+     */
+    synchronized void put(byte[] key, String path) throws IOException {
+        ByteBuffer wrapped = ByteBuffer.wrap(key.clone());
+        if (converted.containsKey(wrapped)) {
+            return;
+        }
+        ByteArrayOutputStream record = new ByteArrayOutputStream(KEY_LENGTH + 2 + path.length());
+        DataOutputStream dos = new DataOutputStream(record);
+        dos.write(key, 0, KEY_LENGTH);
+        dos.writeUTF(path);
+        // one write per record, so a record is never split
+        out.write(record.toByteArray());
+        converted.put(wrapped, path);
+    }
+
+    synchronized int size() {
+        return converted.size();
+    }
+
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException nsae) {
+            // provided by the default security provider of every JRE
+            throw new AssertionError(nsae);
+        }
+    }
+
+    private static int utfLength(String string) {
+        int length = 0;
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            length += c >= 0x0001 && c <= 0x007f ? 1 : c > 0x07ff ? 3 : 2;
+        }
+        return length;
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2011 Yusuke Yamamoto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stereopic;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Computes a disparity map from a left/right pair by block matching the luma of both images.<br>
+ * Images are downsampled to at most {@value #WORKING_WIDTH} pixels wide, and the rows are split into stripes which
+ * are matched concurrently.
+ *
+ * @author Yusuke Yamamoto - yusuke at mac.com
+ */
+final class DisparityMap {
+    static final int WORKING_WIDTH = 640;
+
+    /**
+     * blocks are (2 * BLOCK_RADIUS + 1) pixels square
+     */
+    private static final int BLOCK_RADIUS = 4;
+
+    /**
+     * stripes shorter than this spend more time on the rows they share with their neighbours than on their own
+     */
+    private static final int MIN_STRIPE_HEIGHT = 32;
+
+    private DisparityMap() {
+    }
+
+    /**
+     * Matches blocks of the left image against the right image shifted by -width / 8 to width / 8.<br>
+     * A point at x in the left image is found at x - d in the right image, so nearer objects get larger disparities.
+     *
+     * @param executor runs all the stripes but one, which is run on the calling thread
+     * @return grayscale map at the working resolution. Disparities from -width / 8 to width / 8 are mapped to 0 to 255.
+     * @throws MPOFormatException CORRUPT if the working resolution is smaller than a block
+     */
+    static BufferedImage compute(final BufferedImage left, final BufferedImage right, ExecutorService executor) throws IOException {
+        final int factor = (Math.max(left.getWidth(), right.getWidth()) + WORKING_WIDTH - 1) / WORKING_WIDTH;
+        final int width = Math.min(left.getWidth(), right.getWidth()) / factor;
+        final int height = Math.min(left.getHeight(), right.getHeight()) / factor;
+        if (width < 2 * BLOCK_RADIUS + 1 || height < 2 * BLOCK_RADIUS + 1) {
+            // not even one block to match, and an empty map cannot be created
+            throw new MPOFormatException(SeparationResult.Status.CORRUPT, "frames too small for a depth map:"
+                    + left.getWidth() + "x" + left.getHeight() + ", " + right.getWidth() + "x" + right.getHeight());
+        }
+        final int maxDisparity = Math.max(1, width / 8);
+
+        final int[] leftLuma = new int[width * height];
+        final int[] rightLuma = new int[width * height];
+        forEachStripe(executor, height, new Stripe() {
+            public void run(int from, int to) {
+                luma(left, factor, width, from, to, leftLuma);
+                luma(right, factor, width, from, to, rightLuma);
+            }
+        });
+
+        BufferedImage map = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        final byte[] disparities = ((DataBufferByte) map.getRaster().getDataBuffer()).getData();
+        forEachStripe(executor, height, new Stripe() {
+            public void run(int from, int to) {
+                match(leftLuma, rightLuma, width, height, maxDisparity, from, to, disparities);
+            }
+        });
+        return map;
+    }
+
+    /**
+     * Averages factor x factor pixels of rows from to to (exclusive) at the working resolution into luma.
+     */
+    private static void luma(BufferedImage image, int factor, int width, int from, int to, int[] luma) {
+        int[] rgb = new int[width * factor];
+        int[] sum = new int[width];
+        int area = factor * factor;
+        for (int y = from; y < to; y++) {
+            for (int x = 0; x < width; x++) {
+                sum[x] = 0;
+            }
+            for (int row = y * factor, end = row + factor; row < end; row++) {
+                image.getRGB(0, row, rgb.length, 1, rgb, 0, rgb.length);
+                for (int i = 0; i < rgb.length; i++) {
+                    int pixel = rgb[i];
+                    // ITU-R BT.601
+                    sum[i / factor] += (77 * ((pixel >> 16) & 0xff) + 150 * ((pixel >> 8) & 0xff) + 29 * (pixel & 0xff)) >> 8;
+                }
+            }
+            int offset = y * width;
+            for (int x = 0; x < width; x++) {
+                luma[offset + x] = sum[x] / area;
+            }
+        }
+    }
+
+    /**
+     * Finds the disparity with the least sum of absolute differences for each pixel of rows from to to (exclusive).<br>
+     * Block sums are kept as running column and row sums, so each disparity costs a constant per pixel regardless of
+     * the block size. Rows and columns outside the image repeat the edge.
+     */
+    private static void match(int[] left, int[] right, int width, int height, int maxDisparity
+            , int from, int to, byte[] disparities) {
+        int rows = to - from;
+        int[] bestCost = new int[rows * width];
+        int[] bestDisparity = new int[rows * width];
+        int[] columnSum = new int[width];
+        for (int i = 0; i < bestCost.length; i++) {
+            bestCost[i] = Integer.MAX_VALUE;
+        }
+        for (int d = -maxDisparity; d <= maxDisparity; d++) {
+            for (int x = 0; x < width; x++) {
+                columnSum[x] = 0;
+            }
+            for (int y = from - BLOCK_RADIUS; y < from + BLOCK_RADIUS; y++) {
+                addRow(left, right, width, clamp(y, height), d, columnSum, 1);
+            }
+            for (int y = from; y < to; y++) {
+                addRow(left, right, width, clamp(y + BLOCK_RADIUS, height), d, columnSum, 1);
+                if (y > from) {
+                    addRow(left, right, width, clamp(y - BLOCK_RADIUS - 1, height), d, columnSum, -1);
+                }
+                int cost = 0;
+                for (int x = -BLOCK_RADIUS; x < BLOCK_RADIUS; x++) {
+                    cost += columnSum[clamp(x, width)];
+                }
+                int offset = (y - from) * width;
+                for (int x = 0; x < width; x++) {
+                    cost += columnSum[clamp(x + BLOCK_RADIUS, width)];
+                    if (x > 0) {
+                        cost -= columnSum[clamp(x - BLOCK_RADIUS - 1, width)];
+                    }
+                    if (cost < bestCost[offset + x]) {
+                        bestCost[offset + x] = cost;
+                        bestDisparity[offset + x] = d;
+                    }
+                }
+            }
+        }
+        int range = 2 * maxDisparity;
+        for (int i = 0; i < bestDisparity.length; i++) {
+            disparities[from * width + i] = (byte) ((bestDisparity[i] + maxDisparity) * 255 / range);
+        }
+    }
+
+    private static void addRow(int[] left, int[] right, int width, int y, int d, int[] columnSum, int sign) {
+        int offset = y * width;
+        for (int x = 0; x < width; x++) {
+            int diff = left[offset + x] - right[offset + clamp(x - d, width)];
+            columnSum[x] += sign * (diff < 0 ? -diff : diff);
+        }
+    }
+
+    private static int clamp(int i, int length) {
+        return i < 0 ? 0 : i >= length ? length - 1 : i;
+    }
+
+    private interface Stripe {
+        void run(int from, int to);
+    }
+
+    /**
+     * Splits rows 0 to height into one stripe per core and waits for all of them.
+     */
+    private static void forEachStripe(ExecutorService executor, int height, final Stripe stripe) throws IOException {
+        int count = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), height / MIN_STRIPE_HEIGHT));
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(count - 1);
+        for (int i = 1; i < count; i++) {
+            final int from = height * i / count;
+            final int to = height * (i + 1) / count;
+            futures.add(executor.submit(new Callable<Void>() {
+                public Void call() {
+                    stripe.run(from, to);
+                    return null;
+                }
+            }));
+        }
+        try {
+            stripe.run(0, height / count);
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while computing disparity");
+        } catch (ExecutionException ee) {
+            throw new IOException(ee.getCause().toString());
+        } finally {
+            for (Future<Void> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+}
@@ -17,6 +17,7 @@ package stereopic;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 
 /**
  * @author Yusuke Yamamoto - yusuke at mac.com
@@ -33,12 +34,28 @@ class ExifIFD {
             return HexUtil.get(data, endian);
         }
 
+        public int getTag() {
+            return (int) HexUtil.get(tag, endian);
+        }
+
+        public long getCount() {
+            return HexUtil.get(count, endian);
+        }
+
         public ExifIFD(RandomAccessFile raf, int endian) throws IOException {
             this.endian = endian;
-            raf.read(tag);
-            raf.read(type);
-            raf.read(count);
-            raf.read(data);
+            raf.readFully(tag);
+            raf.readFully(type);
+            raf.readFully(count);
+            raf.readFully(data);
+        }
+
+        public ExifIFD(ByteBuffer buf, int endian) {
+            this.endian = endian;
+            buf.get(tag);
+            buf.get(type);
+            buf.get(count);
+            buf.get(data);
         }
 
         public String toString() {
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2011 Yusuke Yamamoto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stereopic;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static stereopic.HexUtil.*;
+
+/**
+ * Locates the JPEG thumbnail stored in IFD1 of a frame's Exif APP1 segment.
+ *
+ * @author Yusuke Yamamoto - yusuke at mac.com
+ */
+class ExifThumbnail {
+    private static final int SOI = 0xffd8;
+    private static final int APP1 = 0xffe1;
+    private static final int EXIF_IDENTIFIER = 0x45786966;
+    private static final int JPEG_INTERCHANGE_FORMAT = 513;
+    private static final int JPEG_INTERCHANGE_FORMAT_LENGTH = 514;
+    private static final int IFD_ENTRY_LENGTH = 12;
+
+    private ExifThumbnail() {
+    }
+
+    /**
+     * @param frame JPEG bitstream of a single image, from position 0 to its limit
+     * @return view of the thumbnail bitstream, or null if the frame has no valid Exif thumbnail
+     */
+    static ByteBuffer find(ByteBuffer frame) {
+        ByteBuffer buf = frame.duplicate();
+        buf.clear().limit(frame.limit());
+        buf.order(ByteOrder.BIG_ENDIAN);
+        try {
+            if (buf.limit() < 4 || (buf.getShort() & 0xffff) != SOI) {
+                return null;
+            }
+            while (buf.remaining() >= 4) {
+                int markerStart = buf.position();
+                int marker = buf.getShort() & 0xffff;
+                int segmentLength = buf.getShort() & 0xffff;
+                int segmentEnd = markerStart + 2 + segmentLength;
+                if (marker < 0xffe0 || marker > 0xffef || segmentLength < 2 || segmentEnd > buf.limit()) {
+                    // thumbnails live in APP1, which precedes the frame header
+                    return null;
+                }
+                if (marker == APP1 && segmentLength >= 2 + 6 + 8 && buf.getInt() == EXIF_IDENTIFIER) {
+                    buf.getShort();
+                    return findInTIFF(buf, buf.position(), segmentEnd);
+                }
+                buf.position(segmentEnd);
+            }
+        } catch (BufferUnderflowException ignore) {
+        } catch (IllegalArgumentException ignore) {
+            // position beyond limit
+        }
+        return null;
+    }
+
+    private static ByteBuffer findInTIFF(ByteBuffer buf, int tiffStart, int segmentEnd) {
+        int endian;
+        byte[] byteOrder = new byte[2];
+        buf.get(byteOrder);
+        if (byteOrder[0] == 0x4d && byteOrder[1] == 0x4d) {
+            endian = BIG_ENDIAN;
+        } else if (byteOrder[0] == 0x49 && byteOrder[1] == 0x49) {
+            endian = LITTLE_ENDIAN;
+        } else {
+            return null;
+        }
+        buf.getShort();
+        long ifd0 = get(buf, endian, 4);
+        if (tiffStart + ifd0 + 2 > segmentEnd) {
+            return null;
+        }
+        buf.position((int) (tiffStart + ifd0));
+        long count = get(buf, endian, 2);
+        if (buf.position() + count * IFD_ENTRY_LENGTH + 4 > segmentEnd) {
+            return null;
+        }
+        buf.position((int) (buf.position() + count * IFD_ENTRY_LENGTH));
+        long ifd1 = get(buf, endian, 4);
+        if (ifd1 == 0 || tiffStart + ifd1 + 2 > segmentEnd) {
+            return null;
+        }
+        buf.position((int) (tiffStart + ifd1));
+        count = get(buf, endian, 2);
+        if (buf.position() + count * IFD_ENTRY_LENGTH > segmentEnd) {
+            return null;
+        }
+        long offset = -1;
+        long length = -1;
+        for (int i = 0; i < count; i++) {
+            ExifIFD ifd = new ExifIFD(buf, endian);
+            if (ifd.getTag() == JPEG_INTERCHANGE_FORMAT) {
+                offset = ifd.getDataAsLong();
+            } else if (ifd.getTag() == JPEG_INTERCHANGE_FORMAT_LENGTH) {
+                length = ifd.getDataAsLong();
+            }
+        }
+        if (offset < 0 || length <= 0 || tiffStart + offset + length > segmentEnd) {
+            return null;
+        }
+        buf.limit((int) (tiffStart + offset + length));
+        buf.position((int) (tiffStart + offset));
+        return buf.slice().asReadOnlyBuffer();
+    }
+}
@@ -86,6 +86,31 @@ public class FileOutput implements Split {
         return getOuptputStream(fileName);
     }
 
+    public File getPreviewJpegFile() throws IOException {
+        return getOuptputStream(getBaseName() + "-preview.jpg");
+    }
+
+    public File getPreviewGifFile() throws IOException {
+        return getOuptputStream(getBaseName() + "-preview.gif");
+    }
+
+    public File getMotionJpegFile() throws IOException {
+        return getOuptputStream(getBaseName() + ".avi");
+    }
+
+    public File getDepthMapFile() throws IOException {
+        return getOuptputStream(getBaseName() + "-depth.png");
+    }
+
+    private String getBaseName() {
+        int extensionIndex = path.lastIndexOf(".");
+        if (-1 != extensionIndex) {
+            return path.substring(0, extensionIndex);
+        } else {
+            return path;
+        }
+    }
+
     private File getOuptputStream(String path) throws FileNotFoundException {
         LOG.info("image "+count +": "+path);
         File file = new File(path);
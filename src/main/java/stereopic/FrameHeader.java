@@ -0,0 +1,113 @@
+/*
+ * Copyright 2011 Yusuke Yamamoto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stereopic;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Frame header (SOFn) of a JPEG image, read without decoding the image.
+ *
+ * @author Yusuke Yamamoto - yusuke at mac.com
+ */
+class FrameHeader {
+    private static final int SOI = 0xffd8;
+    private static final int SOS = 0xffda;
+    private static final int EOI = 0xffd9;
+
+    private final int marker;
+    private final int precision;
+    private final int height;
+    private final int width;
+    private final int components;
+
+    private FrameHeader(int marker, int precision, int height, int width, int components) {
+        this.marker = marker;
+        this.precision = precision;
+        this.height = height;
+        this.width = width;
+        this.components = components;
+    }
+
+    /**
+     * @param jpeg JPEG bitstream from position 0 to its limit. The buffer itself is not modified.
+     * @return frame header of the image
+     * @throws MPOFormatException when no frame header precedes the first scan
+     */
+    static FrameHeader read(ByteBuffer jpeg) throws MPOFormatException {
+        ByteBuffer buf = jpeg.duplicate();
+        buf.clear().limit(jpeg.limit());
+        buf.order(ByteOrder.BIG_ENDIAN);
+        try {
+            if ((buf.getShort() & 0xffff) != SOI) {
+                throw new MPOFormatException(SeparationResult.Status.CORRUPT, "not a JPEG image");
+            }
+            while (true) {
+                int marker = buf.getShort() & 0xffff;
+                if ((marker & 0xff00) != 0xff00 || marker == SOS || marker == EOI) {
+                    break;
+                }
+                int segmentEnd = buf.position() + (buf.getShort() & 0xffff);
+                if (isSOF(marker)) {
+                    int precision = buf.get() & 0xff;
+                    int height = buf.getShort() & 0xffff;
+                    int width = buf.getShort() & 0xffff;
+                    int components = buf.get() & 0xff;
+                    return new FrameHeader(marker, precision, height, width, components);
+                }
+                buf.position(segmentEnd);
+            }
+        } catch (BufferUnderflowException ignore) {
+        } catch (IllegalArgumentException ignore) {
+            // segment length beyond limit
+        }
+        throw new MPOFormatException(SeparationResult.Status.CORRUPT, "frame header not found");
+    }
+
+    private static boolean isSOF(int marker) {
+        // C4, C8 and CC are DHT, JPG and DAC
+        return 0xffc0 <= marker && marker <= 0xffcf
+                && marker != 0xffc4 && marker != 0xffc8 && marker != 0xffcc;
+    }
+
+    /**
+     * @return SOFn marker, e.g. 0xffc0 for baseline DCT
+     */
+    public int getMarker() {
+        return marker;
+    }
+
+    public int getPrecision() {
+        return precision;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getComponents() {
+        return components;
+    }
+
+    public String toString() {
+        return "SOF" + (marker - 0xffc0) + ":" + width + "x" + height + "x" + components + ":" + precision + "bit";
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2011 Yusuke Yamamoto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stereopic;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps decoded frames and canvases for reuse across files and threads.<br>
+ * Images are classed by width, height and type; a batch from one camera therefore settles on a handful of
+ * classes and stops allocating after the first few files. Idle images are kept up to a byte budget,
+ * beyond which released images are left to the garbage collector.
+ *
+ * @author Yusuke Yamamoto - yusuke at mac.com
+ */
+public class FramePool {
+    private final ConcurrentMap<Long, Queue<BufferedImage>> classes = new ConcurrentHashMap<Long, Queue<BufferedImage>>();
+    private final AtomicLong idleBytes = new AtomicLong();
+    private final long maxIdleBytes;
+
+    public FramePool(long maxIdleBytes) {
+        this.maxIdleBytes = maxIdleBytes;
+    }
+
+    /**
+     * @param type one of BufferedImage.TYPE_*, except TYPE_CUSTOM
+     * @return an image of exactly the given size and type. Its content is undefined.
+     */
+    public BufferedImage acquire(int width, int height, int type) {
+        Queue<BufferedImage> idle = classes.get(sizeClass(width, height, type));
+        if (null != idle) {
+            BufferedImage image = idle.poll();
+            if (null != image) {
+                idleBytes.addAndGet(-sizeOf(image));
+                return image;
+            }
+        }
+        return new BufferedImage(width, height, type);
+    }
+
+    /**
+     * Returns an image to the pool. The caller must not use it afterwards.
+     *
+     * @param image image to be reused, or null
+     */
+    public void release(BufferedImage image) {
+        if (null == image || image.getType() == BufferedImage.TYPE_CUSTOM) {
+            return;
+        }
+        long size = sizeOf(image);
+        if (idleBytes.addAndGet(size) > maxIdleBytes) {
+            idleBytes.addAndGet(-size);
+            return;
+        }
+        Long sizeClass = sizeClass(image.getWidth(), image.getHeight(), image.getType());
+        Queue<BufferedImage> idle = classes.get(sizeClass);
+        if (null == idle) {
+            Queue<BufferedImage> created = new ConcurrentLinkedQueue<BufferedImage>();
+            idle = classes.putIfAbsent(sizeClass, created);
+            if (null == idle) {
+                idle = created;
+            }
+        }
+        idle.offer(image);
+    }
+
+    long getIdleBytes() {
+        return idleBytes.get();
+    }
+
+    private static Long sizeClass(int width, int height, int type) {
+        return ((long) width << 36) | ((long) height << 8) | type;
+    }
+
+    private static long sizeOf(BufferedImage image) {
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        return (long) buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+    }
+}
@@ -17,6 +17,7 @@ package stereopic;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 
 /**
  * @author Yusuke Yamamoto - yusuke at mac.com
@@ -32,6 +33,12 @@ public class HexUtil {
         return get(buf, endian);
     }
 
+    static long get(ByteBuffer buf, int endian, int bytes) {
+        byte[] b = new byte[bytes];
+        buf.get(b);
+        return get(b, endian);
+    }
+
     static long get(byte[] buf, int endian) {
         long value = 0;
         if (endian == BIG_ENDIAN) {
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2011 Yusuke Yamamoto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stereopic;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Posts images as multipart/form-data to an HTTP endpoint.<br>
+ * 429 and 503 responses are reported as rate limiting, honoring Retry-After; other 5xx responses are retryable.
+ *
+ * @author Yusuke Yamamoto - yusuke at mac.com
+ */
+public class HttpUploader implements Uploader {
+    private static final String BOUNDARY = "----stereopic-boundary-7d8a1f2c";
+    private static final String CRLF = "\r\n";
+    private final URL url;
+    private final int timeoutMillis;
+
+    public HttpUploader(URL url) {
+        this(url, 30000);
+    }
+
+    HttpUploader(URL url, int timeoutMillis) {
+        this.url = url;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public String upload(String fileName, InputStream content, String message) throws IOException {
+        byte[] head = ("--" + BOUNDARY + CRLF
+                + "Content-Disposition: form-data; name=\"message\"" + CRLF
+                + "Content-Type: text/plain; charset=UTF-8" + CRLF + CRLF).getBytes("UTF-8");
+        byte[] mediaHead = (message + CRLF
+                + "--" + BOUNDARY + CRLF
+                + "Content-Disposition: form-data; name=\"media\"; filename=\"" + quote(fileName) + "\"" + CRLF
+                + "Content-Type: " + (fileName.toLowerCase().endsWith(".gif") ? "image/gif" : "image/jpeg") + CRLF + CRLF)
+                .getBytes("UTF-8");
+        byte[] tail = (CRLF + "--" + BOUNDARY + "--" + CRLF).getBytes("UTF-8");
+
+        HttpURLConnection con = (HttpURLConnection) url.openConnection();
+        try {
+            con.setConnectTimeout(timeoutMillis);
+            con.setReadTimeout(timeoutMillis);
+            con.setDoOutput(true);
+            con.setRequestMethod("POST");
+            con.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + BOUNDARY);
+            int available = content.available();
+            if (available > 0) {
+                // content is an in-memory stream, so its length is known and the body needn't be buffered again
+                con.setFixedLengthStreamingMode(head.length + mediaHead.length + available + tail.length);
+            } else {
+                con.setChunkedStreamingMode(8192);
+            }
+            OutputStream os = con.getOutputStream();
+            try {
+                os.write(head);
+                os.write(mediaHead);
+                byte[] buf = new byte[8192];
+                int read;
+                while (-1 != (read = content.read(buf))) {
+                    os.write(buf, 0, read);
+                }
+                os.write(tail);
+            } finally {
+                os.close();
+            }
+            int status = con.getResponseCode();
+            if (200 <= status && status < 300) {
+                return readBody(con.getInputStream());
+            }
+            String retryAfter = con.getHeaderField("Retry-After");
+            long retryAfterMillis = -1;
+            if (status == 429 || status == 503) {
+                retryAfterMillis = 0;
+                if (null != retryAfter) {
+                    try {
+                        retryAfterMillis = Long.parseLong(retryAfter.trim()) * 1000;
+                    } catch (NumberFormatException ignore) {
+                        // HTTP-date, back off as usual
+                    }
+                }
+            }
+            throw new UploadException(url + " returned " + status, status >= 500 || status == 429, retryAfterMillis);
+        } finally {
+            con.disconnect();
+        }
+    }
+
+    /**
+     * Percent-encodes the characters that would end the quoted file name or the header, as browsers do.<br>
+     * Names come from input files and archive entries, and are not trusted.
+     */
+    private static String quote(String fileName) {
+        return fileName.replace("\"", "%22").replace("\r", "%0D").replace("\n", "%0A");
+    }
+
+    private static String readBody(InputStream is) throws IOException {
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            byte[] buf = new byte[1024];
+            int read;
+            while (-1 != (read = is.read(buf))) {
+                baos.write(buf, 0, read);
+            }
+            return baos.toString("UTF-8").trim();
+        } finally {
+            is.close();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2011 Yusuke Yamamoto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stereopic;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+
+/**
+ * Default {@link JPEGCodec} backed by javax.imageio.<br>
+ * Streams are cached in memory, so no temporary files are created by ImageIO.
+ *
+ * @author Yusuke Yamamoto - yusuke at mac.com
+ */
+public class ImageIOCodec implements JPEGCodec {
+
+    public String getName() {
+        return "imageio";
+    }
+
+    public BufferedImage decode(InputStream in) throws IOException {
+        return decode(in, 1);
+    }
+
+    public BufferedImage decode(InputStream in, int subsampling) throws IOException {
+        ImageReader reader = getReader();
+        ImageInputStream iis = new MemoryCacheImageInputStream(in);
+        try {
+            reader.setInput(iis, true, true);
+            ImageReadParam param = reader.getDefaultReadParam();
+            if (subsampling > 1) {
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+            }
+            return reader.read(0, param);
+        } finally {
+            reader.dispose();
+            iis.close();
+        }
+    }
+
+    public BufferedImage decode(InputStream in, FramePool pool) throws IOException {
+        return decode(in, null, 1, pool);
+    }
+
+    /**
+     * The JPEG reader stops after the last MCU row of the region, and converts only the columns of the region.
+     */
+    public BufferedImage decode(InputStream in, Rectangle region, int subsampling, FramePool pool) throws IOException {
+        ImageReader reader = getReader();
+        ImageInputStream iis = new MemoryCacheImageInputStream(in);
+        BufferedImage destination = null;
+        try {
+            reader.setInput(iis, true, true);
+            ImageReadParam param = reader.getDefaultReadParam();
+            int width = reader.getWidth(0);
+            int height = reader.getHeight(0);
+            if (null != region) {
+                region = region.intersection(new Rectangle(0, 0, width, height));
+                if (region.isEmpty()) {
+                    throw new IOException("region outside the image:" + region);
+                }
+                param.setSourceRegion(region);
+                width = region.width;
+                height = region.height;
+            }
+            if (subsampling > 1) {
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                width = (width + subsampling - 1) / subsampling;
+                height = (height + subsampling - 1) / subsampling;
+            }
+            Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+            if (types.hasNext()) {
+                int type = types.next().getBufferedImageType();
+                if (type != BufferedImage.TYPE_CUSTOM) {
+                    destination = pool.acquire(width, height, type);
+                    param.setDestination(destination);
+                }
+            }
+            BufferedImage decoded = reader.read(0, param);
+            destination = null;
+            return decoded;
+        } finally {
+            // not handed to the caller
+            pool.release(destination);
+            reader.dispose();
+            iis.close();
+        }
+    }
+
+    public void encode(BufferedImage image, OutputStream out) throws IOException {
+        ImageWriter writer = getWriter();
+        ImageOutputStream ios = new MemoryCacheImageOutputStream(out);
+        try {
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(image, null, null), writer.getDefaultWriteParam());
+        } finally {
+            writer.dispose();
+            ios.close();
+        }
+    }
+
+    ImageReader getReader() throws IOException {
+        Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName("jpeg");
+        if (!readers.hasNext()) {
+            throw new IOException("no JPEG reader available");
+        }
+        return readers.next();
+    }
+
+    private ImageWriter getWriter() throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+        if (!writers.hasNext()) {
+            throw new IOException("no JPEG writer available");
+        }
+        return writers.next();
+    }
+}
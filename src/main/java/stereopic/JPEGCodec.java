@@ -0,0 +1,59 @@
+/*
+ * Copyright 2011 Yusuke Yamamoto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stereopic;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Decodes and encodes baseline JPEG bitstreams.<br>
+ * Implementations are discovered through META-INF/services/stereopic.JPEGCodec, see {@link JPEGCodecs}.
+ *
+ * @author Yusuke Yamamoto - yusuke at mac.com
+ */
+public interface JPEGCodec {
+    /**
+     * @return short name used to select this codec with the "stereopic.codec" system property
+     */
+    String getName();
+
+    BufferedImage decode(InputStream in) throws IOException;
+
+    /**
+     * @param subsampling keep every subsampling-th pixel in both directions. 1 decodes at full size.
+     */
+    BufferedImage decode(InputStream in, int subsampling) throws IOException;
+
+    /**
+     * Decodes into an image acquired from pool, falling back to a fresh image where the codec cannot.<br>
+     * The caller releases the returned image to pool once done with it.
+     */
+    BufferedImage decode(InputStream in, FramePool pool) throws IOException;
+
+    /**
+     * Decodes only a region of the image, subsampled, into an image acquired from pool where the codec can.<br>
+     * The caller releases the returned image to pool once done with it.
+     *
+     * @param region      area to decode, in pixels of the full image, or null for the whole image
+     * @param subsampling keep every subsampling-th pixel of the region in both directions
+     */
+    BufferedImage decode(InputStream in, Rectangle region, int subsampling, FramePool pool) throws IOException;
+
+    void encode(BufferedImage image, OutputStream out) throws IOException;
+}
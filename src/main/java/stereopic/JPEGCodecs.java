@@ -0,0 +1,86 @@
+/*
+ * Copyright 2011 Yusuke Yamamoto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stereopic;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+/**
+ * Chooses the {@link JPEGCodec} at runtime.<br>
+ * Codecs on the classpath registered in META-INF/services/stereopic.JPEGCodec take precedence over
+ * {@link ImageIOCodec}, unless the "stereopic.codec" system property names a codec explicitly.
+ *
+ * @author Yusuke Yamamoto - yusuke at mac.com
+ */
+public final class JPEGCodecs {
+    private final static Logger LOG = LoggerFactory.getLogger(JPEGCodecs.class);
+
+    private static volatile JPEGCodec defaultCodec;
+
+    private JPEGCodecs() {
+    }
+
+    /**
+     * @return ImageIO followed by the codecs found on the classpath
+     */
+    public static List<JPEGCodec> available() {
+        List<JPEGCodec> codecs = new ArrayList<JPEGCodec>();
+        codecs.add(new ImageIOCodec());
+        try {
+            for (JPEGCodec codec : ServiceLoader.load(JPEGCodec.class)) {
+                codecs.add(codec);
+            }
+        } catch (ServiceConfigurationError sce) {
+            // a broken provider (e.g. missing native library) must not disable the fallback
+            LOG.warn("failed to load JPEG codec:" + sce.getMessage());
+        }
+        return codecs;
+    }
+
+    public static JPEGCodec getDefault() {
+        if (null == defaultCodec) {
+            defaultCodec = select(System.getProperty("stereopic.codec"));
+        }
+        return defaultCodec;
+    }
+
+    /**
+     * @param name codec name or class name. null chooses the last codec found on the classpath.
+     */
+    public static JPEGCodec select(String name) {
+        List<JPEGCodec> codecs = available();
+        JPEGCodec selected = codecs.get(codecs.size() - 1);
+        if (null != name) {
+            selected = null;
+            for (JPEGCodec codec : codecs) {
+                if (name.equals(codec.getName()) || name.equals(codec.getClass().getName())) {
+                    selected = codec;
+                }
+            }
+            if (null == selected) {
+                LOG.warn("JPEG codec not found:" + name);
+                selected = codecs.get(0);
+            }
+        }
+        LOG.debug("JPEG codec:" + selected.getName());
+        return selected;
+    }
+}
@@ -15,6 +15,8 @@
  */
 package stereopic;
 
+import java.nio.ByteBuffer;
+
 /**
  * @author Yusuke Yamamoto - yusuke at mac.com
  */
@@ -43,4 +45,15 @@ public class JPEGImage {
     public MPEntry.MPType getMPType() {
         return type;
     }
+
+    /**
+     * @param mpo the whole Multi-Picture Object this image was parsed from
+     * @return a read-only view of this image's JPEG bitstream, sharing content with mpo
+     */
+    public ByteBuffer slice(ByteBuffer mpo) {
+        ByteBuffer view = mpo.duplicate();
+        view.limit((int) (offset + size));
+        view.position((int) offset);
+        return view.slice().asReadOnlyBuffer();
+    }
 }
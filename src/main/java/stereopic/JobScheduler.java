@@ -0,0 +1,120 @@
+/*
+ * Copyright 2011 Yusuke Yamamoto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stereopic;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs conversions concurrently within a heap budget.<br>
+ * Each job declares its footprint up front, estimated from the frame headers, and is admitted only when a worker
+ * and that much of the budget are free; otherwise {@link #submit} blocks, so jobs start in submission order.
+ * Small images thus run on every worker, while large ones run few at a time. A job larger than the whole budget
+ * runs alone.
+ *
+ * @author Yusuke Yamamoto - yusuke at mac.com
+ */
+public class JobScheduler {
+    private final static Logger LOG = LoggerFactory.getLogger(JobScheduler.class);
+
+    /**
+     * the budget is counted in KiB, so that it fits the int permits of a semaphore
+     */
+    private final static int UNIT = 1024;
+
+    private final ExecutorService workers;
+    private final Semaphore idleWorkers;
+    private final Semaphore budget;
+    private final int budgetUnits;
+
+    /**
+     * @param threads     maximum number of jobs running at once
+     * @param budgetBytes maximum sum of the footprints of running jobs
+     */
+    public JobScheduler(int threads, long budgetBytes) {
+        this.workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "stereopic-worker-" + count.incrementAndGet());
+                // never keeps the JVM alive on its own; callers wait for the jobs in close()
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.idleWorkers = new Semaphore(threads);
+        this.budgetUnits = (int) Math.max(1, Math.min(Integer.MAX_VALUE, budgetBytes / UNIT));
+        this.budget = new Semaphore(budgetUnits, true);
+    }
+
+    /**
+     * Blocks until the job is admitted, then runs it on a worker.
+     *
+     * @param footprint estimated heap in bytes the job needs while it runs
+     */
+    public void submit(final Runnable job, long footprint) throws InterruptedIOException {
+        final int units = (int) Math.max(1, Math.min(budgetUnits, (footprint + UNIT - 1) / UNIT));
+        try {
+            idleWorkers.acquire();
+            try {
+                budget.acquire(units);
+            } catch (InterruptedException ie) {
+                idleWorkers.release();
+                throw ie;
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for memory");
+        }
+        LOG.debug("admitted " + units + "KiB, " + budget.availablePermits() + "KiB left");
+        try {
+            workers.execute(new Runnable() {
+                public void run() {
+                    try {
+                        job.run();
+                    } catch (RuntimeException re) {
+                        LOG.error(re.getMessage(), re);
+                    } finally {
+                        budget.release(units);
+                        idleWorkers.release();
+                    }
+                }
+            });
+        } catch (RuntimeException re) {
+            budget.release(units);
+            idleWorkers.release();
+            throw re;
+        }
+    }
+
+    /**
+     * Waits for all submitted jobs to complete.
+     */
+    public void close() throws InterruptedException {
+        workers.shutdown();
+        while (!workers.awaitTermination(1, TimeUnit.MINUTES)) {
+            LOG.info("waiting for conversions to complete");
+        }
+    }
+}
@@ -0,0 +1,856 @@
+/*
+ * Copyright 2011 Yusuke Yamamoto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stereopic;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Places two baseline JPEG images side by side by concatenating their MCU rows in the DCT domain.<br>
+ * The quantized coefficients are entropy decoded and re-encoded as they are, so the result is lossless and no IDCT
+ * or quantization takes place. This requires both images to share height, components, sampling factors and
+ * quantization tables, and the left width to be a multiple of the MCU width. See {@link #isComposable}.<br>
+ * The left image's Huffman tables are reused when they cover every symbol of the combined scan. Otherwise tables
+ * are optimized for it (ITU T.81 Annex K.2), which takes a statistics pass over both scans before encoding.
+ * Neither pass holds more than one block of coefficients in memory.
+ *
+ * @author Yusuke Yamamoto - yusuke at mac.com
+ */
+class LosslessStereoComposer {
+    private final static Logger LOG = LoggerFactory.getLogger(LosslessStereoComposer.class);
+
+    private static final int SOI = 0xffd8;
+    private static final int SOF0 = 0xffc0;
+    private static final int SOF1 = 0xffc1;
+    private static final int DHT = 0xffc4;
+    private static final int DQT = 0xffdb;
+    private static final int DRI = 0xffdd;
+    private static final int SOS = 0xffda;
+    private static final int EOI = 0xffd9;
+    private static final int APP14 = 0xffee;
+
+    private LosslessStereoComposer() {
+    }
+
+    /**
+     * @return true if the images can be composed without decoding them to pixels
+     */
+    static boolean isComposable(ByteBuffer left, ByteBuffer right) {
+        try {
+            return isComposable(new Image(left), new Image(right));
+        } catch (MPOFormatException notSupported) {
+            return false;
+        }
+    }
+
+    private static boolean isComposable(Image left, Image right) {
+        if (left.height != right.height
+                || left.components.length != right.components.length
+                || left.width % (8 * left.maxH) != 0
+                || left.width + right.width > 0xffff) {
+            return false;
+        }
+        for (int i = 0; i < left.components.length; i++) {
+            Component l = left.components[i];
+            Component r = right.components[i];
+            if (l.id != r.id || l.h != r.h || l.v != r.v
+                    || !Arrays.equals(left.quantizationTables[l.tq], right.quantizationTables[r.tq])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @throws MPOFormatException when the images are not composable, see {@link #isComposable}
+     */
+    static void compose(ByteBuffer leftJPEG, ByteBuffer rightJPEG, OutputStream out) throws IOException {
+        Image left = new Image(leftJPEG);
+        Image right = new Image(rightJPEG);
+        if (!isComposable(left, right)) {
+            throw new MPOFormatException(SeparationResult.Status.CORRUPT, "images cannot be composed losslessly");
+        }
+        // the left image's Huffman tables usually cover the right image and the seam as well
+        ByteArrayOutputStream buffered = new ByteArrayOutputStream(left.scan.remaining() + right.scan.remaining() + 1024);
+        try {
+            encode(left, right, left.dc, left.ac, buffered);
+            buffered.writeTo(out);
+            return;
+        } catch (SymbolNotInTableException retry) {
+            LOG.debug("re-encoding with optimized Huffman tables:" + retry.getMessage());
+        }
+
+        Statistics statistics = new Statistics();
+        transcode(left, right, statistics);
+        HuffmanTable[] dc = new HuffmanTable[4];
+        HuffmanTable[] ac = new HuffmanTable[4];
+        for (Component component : left.components) {
+            if (null == dc[component.td]) {
+                dc[component.td] = HuffmanTable.optimal(statistics.dc[component.td]);
+            }
+            if (null == ac[component.ta]) {
+                ac[component.ta] = HuffmanTable.optimal(statistics.ac[component.ta]);
+            }
+        }
+
+        encode(left, right, dc, ac, out);
+    }
+
+    private static void encode(Image left, Image right, HuffmanTable[] dc, HuffmanTable[] ac, OutputStream out) throws IOException {
+        BitWriter writer = new BitWriter(out);
+        writeHeaders(writer, left, left.width + right.width, dc, ac);
+        transcode(left, right, new Encoder(writer, dc, ac));
+        writer.flush();
+        writer.writeMarker(EOI);
+        writer.flush();
+    }
+
+    private static void writeHeaders(BitWriter writer, Image left, int width, HuffmanTable[] dc, HuffmanTable[] ac) throws IOException {
+        writer.writeMarker(SOI);
+        if (null != left.adobe) {
+            // color transform flag of the source applies to the composed image as well
+            writer.writeMarker(APP14);
+            writer.writeShort(left.adobe.length + 2);
+            writer.writeBytes(left.adobe);
+        } else {
+            writer.writeMarker(0xffe0);
+            writer.writeShort(16);
+            writer.writeBytes(new byte[]{'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1, 0, 0});
+        }
+        boolean[] written = new boolean[4];
+        for (Component component : left.components) {
+            if (!written[component.tq]) {
+                written[component.tq] = true;
+                writer.writeMarker(DQT);
+                writer.writeShort(2 + 1 + 64);
+                writer.writeByte(component.tq);
+                for (int q : left.quantizationTables[component.tq]) {
+                    writer.writeByte(q);
+                }
+            }
+        }
+        writer.writeMarker(SOF0);
+        writer.writeShort(8 + 3 * left.components.length);
+        writer.writeByte(8);
+        writer.writeShort(left.height);
+        writer.writeShort(width);
+        writer.writeByte(left.components.length);
+        for (Component component : left.components) {
+            writer.writeByte(component.id);
+            writer.writeByte(component.declaredH << 4 | component.declaredV);
+            writer.writeByte(component.tq);
+        }
+        for (int i = 0; i < 4; i++) {
+            if (null != dc[i]) {
+                dc[i].write(writer, i);
+            }
+            if (null != ac[i]) {
+                ac[i].write(writer, 0x10 | i);
+            }
+        }
+        writer.writeMarker(SOS);
+        writer.writeShort(6 + 2 * left.components.length);
+        writer.writeByte(left.components.length);
+        for (Component component : left.components) {
+            writer.writeByte(component.id);
+            writer.writeByte(component.td << 4 | component.ta);
+        }
+        writer.writeByte(0);
+        writer.writeByte(63);
+        writer.writeByte(0);
+    }
+
+    /**
+     * Decodes both scans MCU row by MCU row, left then right, and hands every block to sink with the DC
+     * difference recomputed for the combined scan.
+     */
+    private static void transcode(Image left, Image right, BlockSink sink) throws IOException {
+        Decoder leftDecoder = new Decoder(left);
+        Decoder rightDecoder = new Decoder(right);
+        int[] predictors = new int[left.components.length];
+        int[] block = new int[64];
+        for (int row = 0; row < left.mcuRows; row++) {
+            for (Decoder decoder : new Decoder[]{leftDecoder, rightDecoder}) {
+                for (int column = 0; column < decoder.image.mcusPerRow; column++) {
+                    decoder.startMCU();
+                    for (int c = 0; c < decoder.image.components.length; c++) {
+                        Component component = decoder.image.components[c];
+                        for (int b = component.h * component.v; b > 0; b--) {
+                            int dc = decoder.decodeBlock(c, block);
+                            sink.block(left.components[c], dc - predictors[c], block);
+                            predictors[c] = dc;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private interface BlockSink {
+        /**
+         * @param block quantized coefficients in zig-zag order. block[0] is not used.
+         */
+        void block(Component component, int dcDifference, int[] block) throws IOException;
+    }
+
+    private static int category(int value) {
+        int magnitude = value < 0 ? -value : value;
+        return 32 - Integer.numberOfLeadingZeros(magnitude);
+    }
+
+    /**
+     * Counts the symbols each Huffman table would encode.
+     */
+    private static class Statistics implements BlockSink {
+        final long[][] dc = new long[4][257];
+        final long[][] ac = new long[4][257];
+
+        public void block(Component component, int dcDifference, int[] block) {
+            dc[component.td][category(dcDifference)]++;
+            long[] frequencies = ac[component.ta];
+            int run = 0;
+            for (int k = 1; k < 64; k++) {
+                if (block[k] == 0) {
+                    run++;
+                } else {
+                    while (run > 15) {
+                        frequencies[0xf0]++;
+                        run -= 16;
+                    }
+                    frequencies[(run << 4) | category(block[k])]++;
+                    run = 0;
+                }
+            }
+            if (run > 0) {
+                frequencies[0]++;
+            }
+        }
+    }
+
+    private static class Encoder implements BlockSink {
+        private final BitWriter writer;
+        private final HuffmanTable[] dc;
+        private final HuffmanTable[] ac;
+
+        Encoder(BitWriter writer, HuffmanTable[] dc, HuffmanTable[] ac) {
+            this.writer = writer;
+            this.dc = dc;
+            this.ac = ac;
+        }
+
+        public void block(Component component, int dcDifference, int[] block) throws IOException {
+            int size = category(dcDifference);
+            dc[component.td].encode(writer, size);
+            writer.writeBits(dcDifference < 0 ? dcDifference - 1 : dcDifference, size);
+            HuffmanTable table = ac[component.ta];
+            int run = 0;
+            for (int k = 1; k < 64; k++) {
+                int coefficient = block[k];
+                if (coefficient == 0) {
+                    run++;
+                } else {
+                    while (run > 15) {
+                        table.encode(writer, 0xf0);
+                        run -= 16;
+                    }
+                    size = category(coefficient);
+                    table.encode(writer, (run << 4) | size);
+                    writer.writeBits(coefficient < 0 ? coefficient - 1 : coefficient, size);
+                    run = 0;
+                }
+            }
+            if (run > 0) {
+                table.encode(writer, 0);
+            }
+        }
+    }
+
+    private static class SymbolNotInTableException extends IOException {
+        private static final long serialVersionUID = 2315094176358725632L;
+
+        SymbolNotInTableException(int symbol) {
+            super("symbol not in table:" + Integer.toHexString(symbol));
+        }
+    }
+
+    private static class Component {
+        int id;
+        int declaredH;
+        int declaredV;
+        // blocks per MCU, 1x1 for non-interleaved scans
+        int h;
+        int v;
+        int tq;
+        int td;
+        int ta;
+    }
+
+    /**
+     * Tables, frame header and scan position of a baseline, single scan JPEG.
+     */
+    private static class Image {
+        final int[][] quantizationTables = new int[4][];
+        final HuffmanTable[] dc = new HuffmanTable[4];
+        final HuffmanTable[] ac = new HuffmanTable[4];
+        Component[] components;
+        byte[] adobe;
+        int width;
+        int height;
+        int maxH = 1;
+        int maxV = 1;
+        int mcusPerRow;
+        int mcuRows;
+        int restartInterval;
+        ByteBuffer scan;
+
+        Image(ByteBuffer jpeg) throws MPOFormatException {
+            ByteBuffer buf = jpeg.slice();
+            buf.order(ByteOrder.BIG_ENDIAN);
+            try {
+                if ((buf.getShort() & 0xffff) != SOI) {
+                    throw notSupported("not a JPEG image");
+                }
+                while (null == scan) {
+                    int marker = buf.getShort() & 0xffff;
+                    int segmentEnd = buf.position() + (buf.getShort() & 0xffff);
+                    switch (marker) {
+                        case SOF0:
+                        case SOF1:
+                            readFrame(buf);
+                            break;
+                        case DQT:
+                            while (buf.position() < segmentEnd) {
+                                int pqtq = buf.get() & 0xff;
+                                if (pqtq >> 4 != 0) {
+                                    throw notSupported("16 bit quantization table");
+                                }
+                                int[] table = new int[64];
+                                for (int i = 0; i < 64; i++) {
+                                    table[i] = buf.get() & 0xff;
+                                }
+                                quantizationTables[pqtq & 3] = table;
+                            }
+                            break;
+                        case DHT:
+                            while (buf.position() < segmentEnd) {
+                                int tcth = buf.get() & 0xff;
+                                HuffmanTable table = HuffmanTable.read(buf);
+                                if (tcth >> 4 == 0) {
+                                    dc[tcth & 3] = table;
+                                } else {
+                                    ac[tcth & 3] = table;
+                                }
+                            }
+                            break;
+                        case DRI:
+                            restartInterval = buf.getShort() & 0xffff;
+                            break;
+                        case APP14:
+                            adobe = new byte[segmentEnd - buf.position()];
+                            buf.get(adobe);
+                            break;
+                        case SOS:
+                            readScan(buf);
+                            buf.position(segmentEnd);
+                            scan = buf.slice();
+                            break;
+                        default:
+                            if ((marker & 0xfff0) == SOF0 || (marker & 0xff00) != 0xff00 || marker == EOI) {
+                                // progressive, lossless, arithmetic coding or broken
+                                throw notSupported("unsupported marker:" + Integer.toHexString(marker));
+                            }
+                    }
+                    if (null == scan) {
+                        buf.position(segmentEnd);
+                    }
+                }
+            } catch (BufferUnderflowException bue) {
+                throw notSupported("unexpected end of image");
+            } catch (IllegalArgumentException iae) {
+                throw notSupported("segment exceeds the image");
+            }
+        }
+
+        private void readFrame(ByteBuffer buf) throws MPOFormatException {
+            if ((buf.get() & 0xff) != 8) {
+                throw notSupported("precision other than 8 bit");
+            }
+            height = buf.getShort() & 0xffff;
+            width = buf.getShort() & 0xffff;
+            components = new Component[buf.get() & 0xff];
+            if (height == 0 || components.length == 0 || components.length > 4) {
+                throw notSupported("unsupported frame:" + width + "x" + height + "x" + components.length);
+            }
+            for (int i = 0; i < components.length; i++) {
+                Component component = new Component();
+                component.id = buf.get() & 0xff;
+                int hv = buf.get() & 0xff;
+                component.declaredH = hv >> 4;
+                component.declaredV = hv & 0xf;
+                component.tq = buf.get() & 3;
+                if (component.declaredH < 1 || component.declaredH > 4 || component.declaredV < 1 || component.declaredV > 4) {
+                    throw notSupported("sampling factor out of range");
+                }
+                maxH = Math.max(maxH, component.declaredH);
+                maxV = Math.max(maxV, component.declaredV);
+                components[i] = component;
+            }
+        }
+
+        private void readScan(ByteBuffer buf) throws MPOFormatException {
+            if (null == components) {
+                throw notSupported("scan without frame");
+            }
+            int ns = buf.get() & 0xff;
+            if (ns != components.length) {
+                // progressive or multi-scan sequential
+                throw notSupported("more than one scan");
+            }
+            for (int i = 0; i < ns; i++) {
+                int id = buf.get() & 0xff;
+                Component component = components[i];
+                if (component.id != id) {
+                    throw notSupported("scan component order differs from the frame");
+                }
+                int tdta = buf.get() & 0xff;
+                component.td = tdta >> 4;
+                component.ta = tdta & 0xf;
+                if (component.td > 1 || component.ta > 1) {
+                    // the output is declared baseline, which has only tables 0 and 1
+                    throw notSupported("Huffman table " + component.td + "/" + component.ta + " beyond baseline");
+                }
+                if (null == dc[component.td] || null == ac[component.ta] || null == quantizationTables[component.tq]) {
+                    throw notSupported("undefined table");
+                }
+            }
+            if (ns == 1) {
+                // a non-interleaved MCU is a single block, laid out by the component's own dimensions
+                maxH = 1;
+                maxV = 1;
+                components[0].h = 1;
+                components[0].v = 1;
+            } else {
+                for (Component component : components) {
+                    component.h = component.declaredH;
+                    component.v = component.declaredV;
+                }
+            }
+            mcusPerRow = (width + 8 * maxH - 1) / (8 * maxH);
+            mcuRows = (height + 8 * maxV - 1) / (8 * maxV);
+        }
+
+        private static MPOFormatException notSupported(String message) {
+            return new MPOFormatException(SeparationResult.Status.CORRUPT, message);
+        }
+    }
+
+    private static class Decoder {
+        final Image image;
+        private final BitReader reader;
+        private final int[] predictors;
+        private int mcus = 0;
+        private int expectedRestart = 0;
+
+        Decoder(Image image) {
+            this.image = image;
+            this.reader = new BitReader(image.scan.duplicate());
+            this.predictors = new int[image.components.length];
+        }
+
+        void startMCU() throws IOException {
+            if (image.restartInterval > 0 && mcus > 0 && mcus % image.restartInterval == 0) {
+                reader.restart(0xffd0 + expectedRestart);
+                expectedRestart = (expectedRestart + 1) & 7;
+                Arrays.fill(predictors, 0);
+            }
+            mcus++;
+        }
+
+        /**
+         * @return absolute DC coefficient of the block. AC coefficients are stored in block[1..63].
+         */
+        int decodeBlock(int c, int[] block) throws IOException {
+            Component component = image.components[c];
+            int size = image.dc[component.td].decode(reader);
+            int dc = predictors[c] + reader.receiveExtend(size);
+            predictors[c] = dc;
+            Arrays.fill(block, 0);
+            HuffmanTable ac = image.ac[component.ta];
+            for (int k = 1; k < 64; k++) {
+                int rs = ac.decode(reader);
+                int run = rs >> 4;
+                size = rs & 0xf;
+                if (size == 0) {
+                    if (run != 15) {
+                        break;
+                    }
+                    k += 15;
+                } else {
+                    k += run;
+                    if (k > 63) {
+                        throw new MPOFormatException(SeparationResult.Status.CORRUPT, "coefficient out of block");
+                    }
+                    block[k] = reader.receiveExtend(size);
+                }
+            }
+            return dc;
+        }
+    }
+
+    private static class HuffmanTable {
+        private static final int LOOKAHEAD = 9;
+
+        // bits[l] codes of length l (1..16) and their symbols in code order
+        final int[] bits = new int[17];
+        final int[] values;
+        // decoding
+        private final int[] maxCode = new int[18];
+        private final int[] valueOffset = new int[17];
+        private final int[] lookahead = new int[1 << LOOKAHEAD];
+        // encoding, by symbol
+        private final int[] codes = new int[256];
+        private final int[] sizes = new int[256];
+
+        private HuffmanTable(int[] bits, int[] values) throws MPOFormatException {
+            System.arraycopy(bits, 0, this.bits, 0, 17);
+            this.values = values;
+            Arrays.fill(lookahead, -1);
+            int code = 0;
+            int index = 0;
+            for (int length = 1; length <= 16; length++) {
+                valueOffset[length] = index - code;
+                for (int i = 0; i < bits[length]; i++) {
+                    int value = values[index++];
+                    codes[value] = code;
+                    sizes[value] = length;
+                    if (length <= LOOKAHEAD) {
+                        int shift = LOOKAHEAD - length;
+                        for (int fill = 0; fill < 1 << shift; fill++) {
+                            lookahead[(code << shift) | fill] = length << 8 | value;
+                        }
+                    }
+                    code++;
+                }
+                maxCode[length] = bits[length] == 0 ? -1 : code - 1;
+                if (code > 1 << length) {
+                    throw new MPOFormatException(SeparationResult.Status.CORRUPT, "invalid Huffman table");
+                }
+                code <<= 1;
+            }
+            maxCode[17] = Integer.MAX_VALUE;
+        }
+
+        static HuffmanTable read(ByteBuffer buf) throws MPOFormatException {
+            int[] bits = new int[17];
+            int count = 0;
+            for (int i = 1; i <= 16; i++) {
+                bits[i] = buf.get() & 0xff;
+                count += bits[i];
+            }
+            if (count > 256) {
+                throw new MPOFormatException(SeparationResult.Status.CORRUPT, "invalid Huffman table");
+            }
+            int[] values = new int[count];
+            for (int i = 0; i < count; i++) {
+                values[i] = buf.get() & 0xff;
+            }
+            return new HuffmanTable(bits, values);
+        }
+
+        /**
+         * Builds code lengths limited to 16 bits from symbol frequencies, as described in ITU T.81 Annex K.2.
+         */
+        static HuffmanTable optimal(long[] symbolFrequencies) throws MPOFormatException {
+            long[] frequencies = symbolFrequencies.clone();
+            // reserved symbol, keeps any code from being all 1 bits
+            frequencies[256] = 1;
+            int[] codeSize = new int[257];
+            int[] others = new int[257];
+            Arrays.fill(others, -1);
+            while (true) {
+                int c1 = -1;
+                long v = Long.MAX_VALUE;
+                for (int i = 0; i <= 256; i++) {
+                    if (frequencies[i] > 0 && frequencies[i] <= v) {
+                        v = frequencies[i];
+                        c1 = i;
+                    }
+                }
+                int c2 = -1;
+                v = Long.MAX_VALUE;
+                for (int i = 0; i <= 256; i++) {
+                    if (frequencies[i] > 0 && frequencies[i] <= v && i != c1) {
+                        v = frequencies[i];
+                        c2 = i;
+                    }
+                }
+                if (c2 < 0) {
+                    break;
+                }
+                frequencies[c1] += frequencies[c2];
+                frequencies[c2] = 0;
+                codeSize[c1]++;
+                while (others[c1] >= 0) {
+                    c1 = others[c1];
+                    codeSize[c1]++;
+                }
+                others[c1] = c2;
+                codeSize[c2]++;
+                while (others[c2] >= 0) {
+                    c2 = others[c2];
+                    codeSize[c2]++;
+                }
+            }
+            int[] bits = new int[33];
+            for (int i = 0; i <= 256; i++) {
+                if (codeSize[i] > 0) {
+                    bits[codeSize[i]]++;
+                }
+            }
+            for (int i = 32; i > 16; i--) {
+                while (bits[i] > 0) {
+                    int j = i - 2;
+                    while (bits[j] == 0) {
+                        j--;
+                    }
+                    bits[i] -= 2;
+                    bits[i - 1]++;
+                    bits[j + 1] += 2;
+                    bits[j]--;
+                }
+            }
+            int i = 16;
+            while (bits[i] == 0) {
+                i--;
+            }
+            // drop the reserved symbol
+            bits[i]--;
+            int count = 0;
+            for (int length = 1; length <= 16; length++) {
+                count += bits[length];
+            }
+            int[] values = new int[count];
+            int index = 0;
+            for (int length = 1; length <= 32; length++) {
+                for (int symbol = 0; symbol < 256; symbol++) {
+                    if (codeSize[symbol] == length) {
+                        values[index++] = symbol;
+                    }
+                }
+            }
+            int[] limited = new int[17];
+            System.arraycopy(bits, 0, limited, 0, 17);
+            return new HuffmanTable(limited, values);
+        }
+
+        int decode(BitReader reader) throws IOException {
+            int entry = lookahead[reader.peek(LOOKAHEAD)];
+            if (entry >= 0) {
+                reader.skip(entry >> 8);
+                return entry & 0xff;
+            }
+            int code = reader.peek(LOOKAHEAD);
+            reader.skip(LOOKAHEAD);
+            int length = LOOKAHEAD;
+            while (code > maxCode[length]) {
+                code = (code << 1) | reader.bit();
+                length++;
+                if (length > 16) {
+                    throw new MPOFormatException(SeparationResult.Status.CORRUPT, "invalid Huffman code");
+                }
+            }
+            return values[code + valueOffset[length]];
+        }
+
+        void encode(BitWriter writer, int symbol) throws IOException {
+            if (sizes[symbol] == 0) {
+                throw new SymbolNotInTableException(symbol);
+            }
+            writer.writeBits(codes[symbol], sizes[symbol]);
+        }
+
+        void write(BitWriter writer, int tcth) throws IOException {
+            writer.writeMarker(DHT);
+            writer.writeShort(2 + 1 + 16 + values.length);
+            writer.writeByte(tcth);
+            for (int length = 1; length <= 16; length++) {
+                writer.writeByte(bits[length]);
+            }
+            for (int value : values) {
+                writer.writeByte(value);
+            }
+        }
+    }
+
+    /**
+     * Reads entropy coded data, removing stuffed zero bytes. Reading into a marker yields zero bits.
+     */
+    private static class BitReader {
+        private final ByteBuffer buf;
+        private long bitBuffer = 0;
+        private int bitCount = 0;
+        private int marker = -1;
+
+        BitReader(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        private void fill() {
+            while (bitCount <= 56) {
+                int b = 0;
+                if (marker < 0 && buf.hasRemaining()) {
+                    b = buf.get() & 0xff;
+                    if (b == 0xff) {
+                        int next = buf.hasRemaining() ? buf.get() & 0xff : 0xd9;
+                        while (next == 0xff && buf.hasRemaining()) {
+                            next = buf.get() & 0xff;
+                        }
+                        if (next != 0) {
+                            marker = 0xff00 | next;
+                            b = 0;
+                        }
+                    }
+                }
+                bitBuffer |= (long) b << (56 - bitCount);
+                bitCount += 8;
+            }
+        }
+
+        int peek(int n) {
+            if (bitCount < n) {
+                fill();
+            }
+            return (int) (bitBuffer >>> (64 - n));
+        }
+
+        void skip(int n) {
+            bitBuffer <<= n;
+            bitCount -= n;
+        }
+
+        int bit() {
+            int bit = peek(1);
+            skip(1);
+            return bit;
+        }
+
+        int receiveExtend(int size) {
+            if (size == 0) {
+                return 0;
+            }
+            int value = peek(size);
+            skip(size);
+            return value < 1 << (size - 1) ? value - (1 << size) + 1 : value;
+        }
+
+        void restart(int expected) throws MPOFormatException {
+            bitBuffer = 0;
+            bitCount = 0;
+            if (marker < 0) {
+                while (buf.hasRemaining()) {
+                    int b = buf.get() & 0xff;
+                    if (b == 0xff) {
+                        int next = 0xff;
+                        while (next == 0xff && buf.hasRemaining()) {
+                            next = buf.get() & 0xff;
+                        }
+                        marker = 0xff00 | next;
+                        break;
+                    }
+                }
+            }
+            if (marker != expected) {
+                throw new MPOFormatException(SeparationResult.Status.CORRUPT, "restart marker expected, found:"
+                        + Integer.toHexString(marker));
+            }
+            marker = -1;
+        }
+    }
+
+    private static class BitWriter {
+        private final OutputStream out;
+        private final byte[] buffer = new byte[8192];
+        private int length = 0;
+        private long bitBuffer = 0;
+        private int bitCount = 0;
+
+        BitWriter(OutputStream out) {
+            this.out = out;
+        }
+
+        void writeBits(int value, int size) throws IOException {
+            if (size == 0) {
+                return;
+            }
+            bitBuffer = (bitBuffer << size) | (value & ((1L << size) - 1));
+            bitCount += size;
+            while (bitCount >= 8) {
+                int b = (int) (bitBuffer >>> (bitCount - 8)) & 0xff;
+                put(b);
+                if (b == 0xff) {
+                    put(0);
+                }
+                bitCount -= 8;
+            }
+        }
+
+        /**
+         * Pads the entropy coded data with 1 bits to a byte boundary and writes out the buffer.
+         */
+        void flush() throws IOException {
+            if (bitCount > 0) {
+                writeBits(0x7f, 8 - bitCount);
+            }
+            out.write(buffer, 0, length);
+            length = 0;
+        }
+
+        void writeMarker(int marker) throws IOException {
+            writeShort(marker);
+        }
+
+        void writeShort(int value) throws IOException {
+            put(value >> 8 & 0xff);
+            put(value & 0xff);
+        }
+
+        void writeByte(int value) throws IOException {
+            put(value & 0xff);
+        }
+
+        void writeBytes(byte[] bytes) throws IOException {
+            for (byte b : bytes) {
+                put(b & 0xff);
+            }
+        }
+
+        private void put(int b) throws IOException {
+            if (length == buffer.length) {
+                out.write(buffer, 0, length);
+                length = 0;
+            }
+            buffer[length++] = (byte) b;
+        }
+    }
+}
@@ -17,6 +17,7 @@ package stereopic;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 
 import static stereopic.HexUtil.*;
 
@@ -34,11 +35,20 @@ public class MPEntry {
 
     public MPEntry(RandomAccessFile raf, int endian) throws IOException {
         this.endian = endian;
-        raf.read(attribute);
-        raf.read(size);
-        raf.read(dataOffset);
-        raf.read(imageEntryNumber1);
-        raf.read(imageEntryNumber2);
+        raf.readFully(attribute);
+        raf.readFully(size);
+        raf.readFully(dataOffset);
+        raf.readFully(imageEntryNumber1);
+        raf.readFully(imageEntryNumber2);
+    }
+
+    public MPEntry(ByteBuffer buf, int endian) {
+        this.endian = endian;
+        buf.get(attribute);
+        buf.get(size);
+        buf.get(dataOffset);
+        buf.get(imageEntryNumber1);
+        buf.get(imageEntryNumber2);
     }
 
     public long getSize() {
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2011 Yusuke Yamamoto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stereopic;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a file is not a Multi-Picture Object, or its MP headers are inconsistent.
+ *
+ * @author Yusuke Yamamoto - yusuke at mac.com
+ */
+public class MPOFormatException extends IOException {
+    private static final long serialVersionUID = -3160296385104581187L;
+    private final SeparationResult.Status status;
+
+    MPOFormatException(SeparationResult.Status status, String message) {
+        super(message);
+        this.status = status;
+    }
+
+    public SeparationResult.Status getStatus() {
+        return status;
+    }
+}
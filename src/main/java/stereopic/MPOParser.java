@@ -0,0 +1,170 @@
+/*
+ * Copyright 2011 Yusuke Yamamoto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stereopic;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ResourceBundle;
+
+import static stereopic.HexUtil.*;
+
+/**
+ * Locates the MP Index IFD of a Multi-Picture Object and validates it against the file.<br>
+ * Only the APPn segments of the first image are examined, so files without an MP Format segment are rejected
+ * as soon as the first non-APPn marker is reached.
+ *
+ * @author Yusuke Yamamoto - yusuke at mac.com
+ */
+class MPOParser {
+    private final static Logger LOG = LoggerFactory.getLogger(MPOParser.class);
+
+    private final static ResourceBundle bundle = ResourceBundle.getBundle("messages");
+
+    private static final int SOI = 0xffd8;
+    private static final int APP2 = 0xffe2;
+    private static final int COM = 0xfffe;
+
+    private static final int MP_FORMAT_IDENTIFIER = 0x4d504600;
+    private static final int MPF_VERSION = 45056;
+    private static final int NUMBER_OF_IMAGES = 45057;
+    private static final int MP_ENTRY = 45058;
+    private static final int MP_ENTRY_LENGTH = 16;
+    private static final int IFD_ENTRY_LENGTH = 12;
+
+    private MPOParser() {
+    }
+
+    /**
+     * @param mpo whole content of the source file, from position 0 to its limit. The buffer itself is not modified.
+     * @return images listed in the MP Entry, in index order
+     * @throws MPOFormatException when the file is not an MPO or its MP Entry is inconsistent with the file
+     */
+    static JPEGImage[] parse(ByteBuffer mpo) throws MPOFormatException {
+        ByteBuffer buf = mpo.duplicate();
+        buf.clear().limit(mpo.limit());
+        buf.order(ByteOrder.BIG_ENDIAN);
+        long length = buf.limit();
+        try {
+            if (length < 4 || (buf.getShort() & 0xffff) != SOI) {
+                throw new MPOFormatException(SeparationResult.Status.NOT_MPO, "not a JPEG file");
+            }
+            while (true) {
+                int markerStart = buf.position();
+                if (markerStart + 4 > length) {
+                    throw new MPOFormatException(SeparationResult.Status.CORRUPT, "unexpected end of file at " + markerStart);
+                }
+                int marker = buf.getShort() & 0xffff;
+                if ((marker & 0xff00) != 0xff00) {
+                    throw new MPOFormatException(SeparationResult.Status.CORRUPT, "marker expected at " + markerStart);
+                }
+                if (!isAPPn(marker) && marker != COM) {
+                    // the MP Format segment must precede the first image's frame header
+                    throw new MPOFormatException(SeparationResult.Status.NOT_MPO, "MP Entry not found.");
+                }
+                int segmentLength = buf.getShort() & 0xffff;
+                long segmentEnd = markerStart + 2 + segmentLength;
+                if (segmentLength < 2 || segmentEnd > length) {
+                    throw new MPOFormatException(SeparationResult.Status.CORRUPT, "segment at " + markerStart + " exceeds the file");
+                }
+                if (marker == APP2 && segmentLength >= 2 + 4 + 8 && buf.getInt() == MP_FORMAT_IDENTIFIER) {
+                    return parseMPIndex(buf, buf.position(), segmentEnd, length);
+                }
+                buf.position((int) segmentEnd);
+            }
+        } catch (BufferUnderflowException bue) {
+            throw new MPOFormatException(SeparationResult.Status.CORRUPT, "unexpected end of MP Format segment");
+        }
+    }
+
+    private static boolean isAPPn(int marker) {
+        return 0xffe0 <= marker && marker <= 0xffef;
+    }
+
+    private static JPEGImage[] parseMPIndex(ByteBuffer buf, int offsetStart, long segmentEnd, long length) throws MPOFormatException {
+        byte[] endianPart = new byte[4];
+        buf.get(endianPart);
+        int endian;
+        if (endianPart[0] == 0x4d
+                && endianPart[1] == 0x4d
+                && endianPart[2] == 0x00
+                && endianPart[3] == 0x2a) {
+            endian = BIG_ENDIAN;
+        } else if (endianPart[0] == 0x49
+                && endianPart[1] == 0x49
+                && endianPart[2] == 0x2a
+                && endianPart[3] == 0x00) {
+            endian = LITTLE_ENDIAN;
+        } else {
+            throw new MPOFormatException(SeparationResult.Status.CORRUPT, "unknown byte order:" + hex(endianPart));
+        }
+        LOG.debug("offsetstart:" + offsetStart);
+        long ifdOffset = get(buf, endian, 4);
+        if (offsetStart + ifdOffset + 2 > segmentEnd) {
+            throw new MPOFormatException(SeparationResult.Status.CORRUPT, "MP Index IFD out of segment:" + ifdOffset);
+        }
+        buf.position((int) (offsetStart + ifdOffset));
+        //MP index IFD
+        long count = get(buf, endian, 2);
+        if (buf.position() + count * IFD_ENTRY_LENGTH > segmentEnd) {
+            throw new MPOFormatException(SeparationResult.Status.CORRUPT, "MP Index IFD count out of segment:" + count);
+        }
+        long numberOfImages = -1;
+        ExifIFD mpEntryIndex = null;
+        for (int i = 0; i < count; i++) {
+            ExifIFD ifd = new ExifIFD(buf, endian);
+            LOG.debug(ifd.toString());
+            switch (ifd.getTag()) {
+                case MPF_VERSION:
+                    break;
+                case NUMBER_OF_IMAGES:
+                    numberOfImages = ifd.getDataAsLong();
+                    break;
+                case MP_ENTRY:
+                    mpEntryIndex = ifd;
+                    break;
+                default:
+            }
+        }
+        if (numberOfImages < 1 || null == mpEntryIndex) {
+            throw new MPOFormatException(SeparationResult.Status.CORRUPT, "NumberOfImages or MPEntry missing");
+        }
+        LOG.info(bundle.getString("numberOfImages") + numberOfImages);
+        long entryStart = offsetStart + mpEntryIndex.getDataAsLong();
+        LOG.debug("mpentry offset:" + entryStart);
+        if (mpEntryIndex.getCount() != numberOfImages * MP_ENTRY_LENGTH
+                || entryStart + numberOfImages * MP_ENTRY_LENGTH > segmentEnd) {
+            throw new MPOFormatException(SeparationResult.Status.CORRUPT, "MP Entry of " + numberOfImages
+                    + " images does not fit in the segment");
+        }
+        // bounded by the segment length checked above, at most 4095 entries
+        JPEGImage[] images = new JPEGImage[(int) numberOfImages];
+        buf.position((int) entryStart);
+        for (int i = 0; i < images.length; i++) {
+            MPEntry entry = new MPEntry(buf, endian);
+            LOG.debug(entry.toString());
+            long offset = i == 0 ? 0 : offsetStart + entry.getOffset();
+            if (entry.getSize() == 0 || offset + entry.getSize() > length) {
+                throw new MPOFormatException(SeparationResult.Status.CORRUPT, "image " + i + " out of file:" + entry);
+            }
+            images[i] = new JPEGImage(offset, entry.getSize(), entry.getMPType());
+        }
+        return images;
+    }
+}
@@ -26,17 +26,29 @@ import javax.imageio.ImageWriter;
 import javax.imageio.metadata.IIOMetadata;
 import javax.imageio.metadata.IIOMetadataNode;
 import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.ResourceBundle;
-
-import static stereopic.HexUtil.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * http://www.cipa.jp/hyoujunka/kikaku/pdf/DC-007_J.pdf
@@ -49,141 +61,526 @@ public class MPOSeparator {
 
     private final static ResourceBundle bundle = ResourceBundle.getBundle("messages");
 
+    /**
+     * shared across separators so that concurrent conversions never decode on more threads than there are cores
+     */
+    private final static ExecutorService decoder = newPool("stereopic-decoder-");
+
+    /**
+     * depth map stripes, apart from the decoder so that matching does not queue behind the decoding of other files,
+     * and likewise never on more threads than there are cores
+     */
+    private final static ExecutorService depthStripes = newPool("stereopic-depth-");
+
+    private static ExecutorService newPool(final String prefix) {
+        return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * frames and canvases are reused across files and threads, up to a quarter of the heap
+     */
+    private final static FramePool pool = new FramePool(Runtime.getRuntime().maxMemory() / 4);
+
+    private final static int PREVIEW_SUBSAMPLING = 8;
+
+    private final JPEGCodec codec;
+
     MPOSeparator() {
+        this(JPEGCodecs.getDefault());
+    }
+
+    private Publisher publisher;
+
+    private int motionJPEGLoops = 0;
+
+    private boolean losslessStereo = false;
+
+    private boolean depthMap = false;
+
+    private ArchiveWriter archive;
+
+    private boolean colorMatching = false;
+
+    private Crop crop;
+
+    private DedupIndex dedupIndex;
+
+    MPOSeparator(JPEGCodec codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * @param publisher receives every generated stereo image and animated GIF, or null not to publish
+     */
+    void setPublisher(Publisher publisher) {
+        this.publisher = publisher;
+    }
+
+    /**
+     * Enables the Motion-JPEG AVI wobble, built from the original JPEG bitstreams. Frames are shown for gifDelay.
+     *
+     * @param loops number of times the frames are repeated in the AVI, or 0 not to generate it
+     */
+    void setMotionJPEGLoops(int loops) {
+        this.motionJPEGLoops = loops;
     }
 
-    public void separate(File file, Split split, boolean separateJPEG
+    /**
+     * Makes the stereo image a full size side-by-side JPEG. When the pair allows, it is composed from the original
+     * DCT coefficients without decoding; otherwise the frames are decoded and re-encoded at full size.
+     */
+    void setLosslessStereo(boolean losslessStereo) {
+        this.losslessStereo = losslessStereo;
+    }
+
+    /**
+     * Matches the exposure and color of every decoded frame to the first one before the stereo image, the animated
+     * GIF and the disparity map are generated. Outputs built from the original bitstreams are left as they are.
+     */
+    void setColorMatching(boolean colorMatching) {
+        this.colorMatching = colorMatching;
+    }
+
+    /**
+     * @param crop region of each frame kept in the stereo image, the animated GIF and the disparity map, or null for
+     *             whole frames. The lossless stereo image, the AVI and the split JPEGs are never cropped.
+     */
+    void setCrop(Crop crop) {
+        this.crop = crop;
+    }
+
+    /**
+     * @param dedupIndex files whose frames are in the index are skipped by {@link #separate}, and converted files
+     *                   are added to it. null converts every file.
+     */
+    void setDedupIndex(DedupIndex dedupIndex) {
+        this.dedupIndex = dedupIndex;
+    }
+
+    /**
+     * @param archive receives every output instead of the file system, or null to write files
+     */
+    void setArchive(ArchiveWriter archive) {
+        this.archive = archive;
+    }
+
+    /**
+     * Enables the disparity map of the first pair, written as a grayscale PNG. Nearer objects are brighter.
+     */
+    void setDepthMap(boolean depthMap) {
+        this.depthMap = depthMap;
+    }
+
+    /**
+     * @return outcome of the separation. Never throws; failures are reported through the result.
+     */
+    public SeparationResult separate(File file, Split split, boolean separateJPEG
+            , boolean generateAnimatedGif, int gifDelay
+            , boolean generateStereoImage, int stereoImageWidth) {
+        return separate(file, null, split, separateJPEG, generateAnimatedGif, gifDelay, generateStereoImage, stereoImageWidth);
+    }
+
+    /**
+     * @param file names the source in results and logs
+     * @param mpo  content of the file, or null to map the file
+     */
+    SeparationResult separate(File file, ByteBuffer mpo, Split split, boolean separateJPEG
             , boolean generateAnimatedGif, int gifDelay
             , boolean generateStereoImage, int stereoImageWidth) {
 
-        JPEGImage[] images = null;
-        RandomAccessFile raf = null;
-        OutputStream fos = null;
         try {
-            raf = new RandomAccessFile(file, "r");
-            int read;
-            while (-1 != (read = raf.read())) {
-                if (read == 0xff
-                        && 0xe2 == raf.read()) {
-                    raf.read();
-                    raf.read();
-                    int endian = 0;
-                    if (0x4d == raf.read()
-                            && 0x50 == raf.read()
-                            && 0x46 == raf.read()
-                            && 0x00 == raf.read()
-                            ) {
-                        //mpf
-                        byte[] endianPart = new byte[4];
-                        endian = 0;
-                        raf.read(endianPart);
-                        if (endianPart[0] == 0x4d
-                                && endianPart[1] == 0x4d
-                                && endianPart[2] == 0x00
-                                && endianPart[3] == 0x2a) {
-                            // big endian
-                            endian = BIG_ENDIAN;
-                        } else if (endianPart[0] == 0x49
-                                && endianPart[1] == 0x49
-                                && endianPart[2] == 0x2a
-                                && endianPart[3] == 0x00) {
-                            // little endian
-                            endian = LITTLE_ENDIAN;
-                        }
-
-                        if (endian != 0) {
-                            long offsetStart = raf.getFilePointer() - 4;
-                            long idfOffset = get(raf, endian, 4);
-                            raf.seek(offsetStart + idfOffset);
-                            //MP index IDF
-                            LOG.debug("offsetstart:" + offsetStart);
-                            raf.seek(raf.getFilePointer() + 2);
-                            ExifIFD mpfVersion = new ExifIFD(raf, endian);
-                            LOG.debug(mpfVersion.toString());
-                            ExifIFD numberOfImages = new ExifIFD(raf, endian);
-                            LOG.debug(numberOfImages.toString());
-                            ExifIFD mpEntryIndex = new ExifIFD(raf, endian);
-                            LOG.debug(mpEntryIndex.toString());
-                            LOG.info(bundle.getString("numberOfImages") + numberOfImages.getDataAsLong());
-                            LOG.debug("offset:" + mpEntryIndex.getDataAsLong());
-                            MPEntry[] entries = new MPEntry[(int) numberOfImages.getDataAsLong()];
-                            images = new JPEGImage[entries.length];
-
-                            LOG.debug("mpentry offset:" + (offsetStart + mpEntryIndex.getDataAsLong()));
-                            raf.seek(offsetStart + mpEntryIndex.getDataAsLong());
-                            for (int i = 0; i < entries.length; i++) {
-                                entries[i] = new MPEntry(raf, endian);
-                                images[i] = new JPEGImage(
-                                        i == 0 ? 0 : offsetStart + entries[i].getOffset()
-                                        , entries[i].getSize()
-                                        , entries[i].getMPType());
-                            }
-                            break;
-                        }
+            if (null == mpo) {
+                mpo = map(file);
+            }
+            JPEGImage[] images = parseStereo(mpo);
+            // views over the mapped file, nothing is copied
+            ByteBuffer[] frames = new ByteBuffer[images.length];
+            for (int i = 0; i < images.length; i++) {
+                frames[i] = images[i].slice(mpo);
+            }
+            byte[] key = null;
+            if (null != dedupIndex) {
+                key = DedupIndex.key(frames, describeOutputs(separateJPEG, generateAnimatedGif, gifDelay
+                        , generateStereoImage, stereoImageWidth));
+                String duplicateOf = dedupIndex.get(key);
+                // converting the same file again regenerates its outputs
+                if (null != duplicateOf && !duplicateOf.equals(file.getPath())) {
+                    LOG.info(bundle.getString("duplicate") + duplicateOf);
+                    return SeparationResult.duplicate(file, images, duplicateOf);
+                }
+            }
+            if (generateStereoImage && losslessStereo && null == crop) {
+                if (frames.length > 1 && LosslessStereoComposer.isComposable(frames[0], frames[1])) {
+                    generateLosslessStereoImage(split.getStereoJpegFile(), frames);
+                    generateStereoImage = false;
+                } else {
+                    LOG.info(bundle.getString("losslessNotApplicable"));
+                    stereoImageWidth = FrameHeader.read(frames[0]).getWidth() * 2;
+                }
+            }
+            if (generateAnimatedGif || generateStereoImage || (depthMap && frames.length > 1)) {
+                // the stereo image and the disparity map use only the first pair
+                int subsampling = getSubsampling(FrameHeader.read(frames[0]), generateAnimatedGif, generateStereoImage, stereoImageWidth);
+                BufferedImage[] decoded = decode(frames, generateAnimatedGif ? frames.length : 2, subsampling);
+                try {
+                    if (colorMatching) {
+                        matchColors(decoded);
+                    }
+                    if (generateAnimatedGif) {
+                        generateAnimatedGIF(split.getGifFile(), gifDelay, decoded);
+                    }
+                    if (generateStereoImage) {
+                        generateStereoImage(split.getStereoJpegFile(), decoded, stereoImageWidth);
+                    }
+                    if (depthMap && decoded.length > 1) {
+                        generateDepthMap(split.getDepthMapFile(), decoded);
+                    }
+                } finally {
+                    for (BufferedImage frame : decoded) {
+                        pool.release(frame);
                     }
                 }
             }
-            if (null == images) {
-                LOG.warn("MP Entry not found.");
-            } else {
-                File[] separatedFiles = new File[images.length];
-                for (int i = 0, imagesLength = images.length; i < imagesLength; i++) {
-                    JPEGImage image = images[i];
-                    raf.seek(image.getOffset());
-                    separatedFiles[i] = File.createTempFile("mpo", "jpeg");
-                    fos = new FileOutputStream(separatedFiles[i]);
-                    for (int j = 0; j < image.getSize(); j++) {
-                        fos.write(raf.read());
+            if (motionJPEGLoops > 0) {
+                generateMotionJPEG(split.getMotionJpegFile(), gifDelay, frames);
+            }
+            if (separateJPEG) {
+                storeJPEGFiles(split, images, frames);
+            }
+            if (null != key) {
+                dedupIndex.put(key, file.getPath());
+            }
+            LOG.info(bundle.getString("done"));
+            return SeparationResult.separated(file, images);
+        } catch (MPOFormatException mfe) {
+            LOG.warn(file + ":" + mfe.getMessage());
+            return SeparationResult.failed(file, mfe);
+        } catch (IOException ioe) {
+            LOG.error(file + ":" + ioe.getMessage(), ioe);
+            return SeparationResult.failed(file, ioe);
+        }
+    }
+
+    /**
+     * @return every option that changes what {@link #separate} writes
+     */
+    String describeOutputs(boolean separateJPEG, boolean generateAnimatedGif, int gifDelay
+            , boolean generateStereoImage, int stereoImageWidth) {
+        return "si=" + separateJPEG + ",gif=" + (generateAnimatedGif ? gifDelay : -1)
+                + ",stereo=" + (generateStereoImage ? stereoImageWidth : -1) + ",lossless=" + losslessStereo
+                + ",avi=" + motionJPEGLoops + (motionJPEGLoops > 0 ? ":" + gifDelay : "") + ",depth=" + depthMap
+                + ",match=" + colorMatching + ",crop=" + crop + ",codec=" + codec.getName()
+                + ",archive=" + (null != archive);
+    }
+
+    /**
+     * Generates a low resolution animated GIF and/or stereo image from the Exif thumbnails embedded in each frame.<br>
+     * Frames without a thumbnail are decoded at 1/{@value #PREVIEW_SUBSAMPLING} instead.
+     *
+     * @param stereoImageWidth upper bound of the stereo image width. The thumbnails are never enlarged.
+     * @return outcome of the preview. Never throws; failures are reported through the result.
+     */
+    public SeparationResult preview(File file, Split split
+            , boolean generateAnimatedGif, int gifDelay
+            , boolean generateStereoImage, int stereoImageWidth) {
+        return preview(file, null, split, generateAnimatedGif, gifDelay, generateStereoImage, stereoImageWidth);
+    }
+
+    /**
+     * @param file names the source in results and logs
+     * @param mpo  content of the file, or null to map the file
+     */
+    SeparationResult preview(File file, ByteBuffer mpo, Split split
+            , boolean generateAnimatedGif, int gifDelay
+            , boolean generateStereoImage, int stereoImageWidth) {
+        try {
+            if (null == mpo) {
+                mpo = map(file);
+            }
+            JPEGImage[] images = parseStereo(mpo);
+            BufferedImage[] thumbnails = new BufferedImage[generateAnimatedGif ? images.length : Math.min(2, images.length)];
+            try {
+                for (int i = 0; i < thumbnails.length; i++) {
+                    ByteBuffer frame = images[i].slice(mpo);
+                    ByteBuffer thumbnail = ExifThumbnail.find(frame);
+                    if (null != thumbnail) {
+                        thumbnails[i] = read(thumbnail, 1);
+                    } else {
+                        LOG.debug("no thumbnail in image " + i);
+                        thumbnails[i] = read(frame, PREVIEW_SUBSAMPLING);
                     }
-                    fos.close();
+                }
+                if (colorMatching) {
+                    matchColors(thumbnails);
                 }
                 if (generateAnimatedGif) {
-                    generateAnimatedGIF(split, gifDelay, separatedFiles);
+                    generateAnimatedGIF(split.getPreviewGifFile(), gifDelay, thumbnails);
                 }
-                if(generateStereoImage){
-                    generateStereoImage(split, separatedFiles, stereoImageWidth);
-
+                if (generateStereoImage) {
+                    generateStereoImage(split.getPreviewJpegFile(), thumbnails
+                            , Math.min(stereoImageWidth, thumbnails[0].getWidth() * 2));
                 }
-                if (separateJPEG) {
-                    moveJPEGFiles(split, images, separatedFiles);
-                } else {
-                    for (File separated : separatedFiles) {
-                        separated.deleteOnExit();
-                    }
+            } finally {
+                for (BufferedImage thumbnail : thumbnails) {
+                    pool.release(thumbnail);
                 }
-                LOG.info(bundle.getString("done"));
             }
-        } catch (IOException ignore) {
-            ignore.printStackTrace();
+            LOG.info(bundle.getString("done"));
+            return SeparationResult.separated(file, images);
+        } catch (MPOFormatException mfe) {
+            LOG.warn(file + ":" + mfe.getMessage());
+            return SeparationResult.failed(file, mfe);
+        } catch (IOException ioe) {
+            LOG.error(file + ":" + ioe.getMessage(), ioe);
+            return SeparationResult.failed(file, ioe);
+        }
+    }
+
+    /**
+     * Estimates the heap {@link #separate} needs for the file, from the frame headers alone.
+     *
+     * @return bytes of decoded frames, canvases and buffered output held at the same time
+     */
+    long estimateFootprint(File file, boolean generateAnimatedGif
+            , boolean generateStereoImage, int stereoImageWidth) throws IOException {
+        return estimateFootprint(map(file), generateAnimatedGif, generateStereoImage, stereoImageWidth);
+    }
+
+    long estimateFootprint(ByteBuffer mpo, boolean generateAnimatedGif
+            , boolean generateStereoImage, int stereoImageWidth) throws IOException {
+        JPEGImage[] images = MPOParser.parse(mpo);
+        ByteBuffer[] frames = new ByteBuffer[images.length];
+        for (int i = 0; i < images.length; i++) {
+            frames[i] = images[i].slice(mpo);
+        }
+        long footprint = 0;
+        if (generateStereoImage && losslessStereo && null == crop) {
+            if (frames.length > 1 && LosslessStereoComposer.isComposable(frames[0], frames[1])) {
+                // the composed bitstream is buffered, then copied once
+                footprint += 2L * (frames[0].remaining() + frames[1].remaining());
+                generateStereoImage = false;
+            } else {
+                stereoImageWidth = FrameHeader.read(frames[0]).getWidth() * 2;
+            }
+        }
+        boolean generateDepthMap = depthMap && frames.length > 1;
+        int count = generateAnimatedGif ? frames.length
+                : generateStereoImage || generateDepthMap ? Math.min(2, frames.length) : 0;
+        FrameHeader first = FrameHeader.read(frames[0]);
+        int subsampling = getSubsampling(first, generateAnimatedGif, generateStereoImage, stereoImageWidth);
+        Dimension firstSize = getDecodedSize(first.getWidth(), first.getHeight(), subsampling);
+        for (int i = 0; i < count; i++) {
+            FrameHeader header = FrameHeader.read(frames[i]);
+            Dimension size = getDecodedSize(header.getWidth(), header.getHeight(), subsampling);
+            footprint += decodedFootprint(size.width, size.height, header.getComponents(), generateAnimatedGif);
+        }
+        if (generateStereoImage) {
+            footprint += canvasFootprint(firstSize.width, firstSize.height, stereoImageWidth);
+        }
+        if (generateDepthMap) {
+            int factor = (firstSize.width + DisparityMap.WORKING_WIDTH - 1) / DisparityMap.WORKING_WIDTH;
+            // two luma planes, the map, and the costs and disparities of every stripe
+            footprint += (long) (firstSize.width / factor) * (firstSize.height / factor) * 17;
+        }
+        return footprint;
+    }
+
+    /**
+     * Estimates the heap {@link #preview} needs for the file, from the thumbnail headers alone.
+     */
+    long estimatePreviewFootprint(File file, boolean generateAnimatedGif
+            , boolean generateStereoImage, int stereoImageWidth) throws IOException {
+        return estimatePreviewFootprint(map(file), generateAnimatedGif, generateStereoImage, stereoImageWidth);
+    }
+
+    long estimatePreviewFootprint(ByteBuffer mpo, boolean generateAnimatedGif
+            , boolean generateStereoImage, int stereoImageWidth) throws IOException {
+        JPEGImage[] images = MPOParser.parse(mpo);
+        int count = generateAnimatedGif ? images.length : Math.min(2, images.length);
+        long footprint = 0;
+        int firstWidth = 0;
+        int firstHeight = 0;
+        for (int i = 0; i < count; i++) {
+            ByteBuffer frame = images[i].slice(mpo);
+            ByteBuffer thumbnail = ExifThumbnail.find(frame);
+            FrameHeader header = FrameHeader.read(null != thumbnail ? thumbnail : frame);
+            Dimension size = getDecodedSize(header.getWidth(), header.getHeight()
+                    , null != thumbnail ? 1 : PREVIEW_SUBSAMPLING);
+            footprint += decodedFootprint(size.width, size.height, header.getComponents(), generateAnimatedGif);
+            if (0 == i) {
+                firstWidth = size.width;
+                firstHeight = size.height;
+            }
+        }
+        if (generateStereoImage) {
+            footprint += canvasFootprint(firstWidth, firstHeight, Math.min(stereoImageWidth, firstWidth * 2));
+        }
+        return footprint;
+    }
+
+    private static long decodedFootprint(int width, int height, int components, boolean generateAnimatedGif) {
+        long pixels = (long) width * height;
+        // the GIF writer quantizes each frame into a palette image, and keeps the compressed frames
+        return pixels * components + (generateAnimatedGif ? pixels * 2 : 0);
+    }
+
+    private static long canvasFootprint(int frameWidth, int frameHeight, int width) {
+        long height = (long) frameHeight * width / (frameWidth * 2);
+        // the canvas and its encoded JPEG, with the slack of a growing ByteArrayOutputStream
+        return width * height * 3 * 2;
+    }
+
+    /**
+     * @throws MPOFormatException NOT_MPO if the file holds fewer than a left and a right image
+     */
+    private static JPEGImage[] parseStereo(ByteBuffer mpo) throws IOException {
+        JPEGImage[] images = MPOParser.parse(mpo);
+        if (images.length < 2) {
+            throw new MPOFormatException(SeparationResult.Status.NOT_MPO, "fewer than two images:" + images.length);
+        }
+        return images;
+    }
+
+    /**
+     * Maps the whole file read-only. The mapping stays valid after the file is closed.
+     */
+    static ByteBuffer map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
         } finally {
+            raf.close();
+        }
+    }
 
-            if (null != raf) {
-                try {
-                    raf.close();
-                } catch (IOException ignore) {
+    /**
+     * Decodes the first count images concurrently. The first image is decoded on the calling thread.
+     */
+    private BufferedImage[] decode(final ByteBuffer[] frames, int count, final int subsampling) throws IOException {
+        count = Math.min(count, frames.length);
+        List<Future<BufferedImage>> futures = new ArrayList<Future<BufferedImage>>(count);
+        for (int i = 1; i < count; i++) {
+            final ByteBuffer frame = frames[i];
+            futures.add(decoder.submit(new Callable<BufferedImage>() {
+                public BufferedImage call() throws IOException {
+                    return read(frame, subsampling);
                 }
+            }));
+        }
+        BufferedImage[] decoded = new BufferedImage[count];
+        try {
+            decoded[0] = read(frames[0], subsampling);
+            for (int i = 1; i < count; i++) {
+                decoded[i] = futures.get(i - 1).get();
+            }
+        } catch (InterruptedException ie) {
+            release(decoded, futures);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while decoding");
+        } catch (ExecutionException ee) {
+            release(decoded, futures);
+            if (ee.getCause() instanceof IOException) {
+                throw (IOException) ee.getCause();
             }
-            if (null != fos) {
+            throw new IOException(ee.getCause().toString());
+        } finally {
+            for (Future<BufferedImage> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return decoded;
+    }
+
+    /**
+     * Returns frames decoded so far, and those still being decoded, to the pool.
+     */
+    private static void release(BufferedImage[] decoded, List<Future<BufferedImage>> futures) {
+        for (BufferedImage frame : decoded) {
+            pool.release(frame);
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            Future<BufferedImage> future = futures.get(i);
+            if (null == decoded[i + 1] && future.isDone() && !future.isCancelled()) {
                 try {
-                    fos.close();
-                } catch (IOException ignore) {
+                    pool.release(future.get());
+                } catch (Exception ignore) {
                 }
             }
         }
     }
 
-    private void generateStereoImage(Split split, File[] separatedFiles, int width) throws IOException {
+    private static void matchColors(BufferedImage[] frames) {
+        for (int i = 1; i < frames.length; i++) {
+            ColorMatcher.match(frames[0], frames[i]);
+        }
+    }
+
+    /**
+     * @return decoded frame, cropped if a crop is set, to be released to the pool by the caller
+     */
+    private BufferedImage read(ByteBuffer frame, int subsampling) throws IOException {
+        Rectangle region = null;
+        if (null != crop) {
+            FrameHeader header = FrameHeader.read(frame);
+            region = crop.regionOf(header.getWidth(), header.getHeight());
+        }
+        return codec.decode(new ByteBufferInputStream(frame), region, subsampling, pool);
+    }
+
+    /**
+     * Cropped frames used only for the stereo image are decoded at no more than twice the size they are drawn at.
+     * Whole frames are decoded at full size, as they always were.
+     */
+    private int getSubsampling(FrameHeader first, boolean generateAnimatedGif
+            , boolean generateStereoImage, int stereoImageWidth) {
+        if (null == crop || generateAnimatedGif || !generateStereoImage) {
+            return 1;
+        }
+        int regionWidth = crop.regionOf(first.getWidth(), first.getHeight()).width;
+        int subsampling = Math.max(1, regionWidth / Math.max(1, stereoImageWidth));
+        if (depthMap) {
+            subsampling = Math.min(subsampling, Math.max(1, regionWidth / DisparityMap.WORKING_WIDTH));
+        }
+        return subsampling;
+    }
+
+    /**
+     * @return size of the frame as {@link #read} decodes it
+     */
+    private Dimension getDecodedSize(int width, int height, int subsampling) {
+        if (null != crop) {
+            Rectangle region = crop.regionOf(width, height);
+            width = region.width;
+            height = region.height;
+        }
+        return new Dimension((width + subsampling - 1) / subsampling, (height + subsampling - 1) / subsampling);
+    }
+
+    private void generateStereoImage(File output, BufferedImage[] frames, int width) throws IOException {
         LOG.info(bundle.getString("generatingStereoJPEG"));
 
-        BufferedImage bi0 = ImageIO.read(separatedFiles[0]);
+        BufferedImage bi0 = frames[0];
         int bi0Width = bi0.getWidth();
 
         int bi0Height = bi0.getHeight();
         double ratio = (double)width / (double)(bi0Width * 2);
         int height = (int) (bi0Height * ratio);
-        BufferedImage bi = new BufferedImage(width, height, bi0.getType());
+        // decoders may produce custom image types, which cannot be instantiated by type
+        BufferedImage bi = pool.acquire(width, height
+                , bi0.getType() == BufferedImage.TYPE_CUSTOM ? BufferedImage.TYPE_3BYTE_BGR : bi0.getType());
 
         Graphics2D g2d = bi.createGraphics();
+        // the canvas is reused, clear the odd column left by width / 2
+        g2d.clearRect(0, 0, width, height);
         g2d.setRenderingHint(RenderingHints.KEY_ALPHA_INTERPOLATION,
                 RenderingHints.VALUE_ALPHA_INTERPOLATION_QUALITY);
         g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
@@ -205,35 +602,133 @@ public class MPOSeparator {
 
         g2d.drawImage(bi0, 0, 0, width / 2, height, null);
 
-        BufferedImage bi1 = ImageIO.read(separatedFiles[1]);
+        BufferedImage bi1 = frames[1];
         g2d.drawImage(bi1, width / 2, 0, width / 2, height, null);
 
-        ImageIO.write(bi, "jpg", split.getStereoJpegFile());
+        g2d.dispose();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try {
+            codec.encode(bi, baos);
+        } finally {
+            pool.release(bi);
+        }
+        store(output, baos.toByteArray());
+    }
+
+    private void generateLosslessStereoImage(File output, ByteBuffer[] frames) throws IOException {
+        LOG.info(bundle.getString("generatingStereoJPEG"));
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(frames[0].remaining() + frames[1].remaining());
+        LosslessStereoComposer.compose(frames[0], frames[1], baos);
+        store(output, baos.toByteArray());
+    }
+
+    private void generateDepthMap(File output, BufferedImage[] frames) throws IOException {
+        LOG.info(bundle.getString("generatingDepthMap"));
+        BufferedImage map = DisparityMap.compute(frames[0], frames[1], depthStripes);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ImageIO.write(map, "png", baos);
+        write(output, new ByteBuffer[]{ByteBuffer.wrap(baos.toByteArray())});
+    }
+
+    /**
+     * Writes a generated image and hands the same bytes to the publisher, if any.
+     */
+    private void store(File output, byte[] content) throws IOException {
+        write(output, new ByteBuffer[]{ByteBuffer.wrap(content)});
+        if (null != publisher) {
+            publisher.publish(output.getName(), content, output.getName());
+        }
+    }
 
+    private void generateMotionJPEG(File output, int delay, ByteBuffer[] frames) throws IOException {
+        LOG.info(bundle.getString("generatingMotionJPEG"));
+        GatheredBuffers avi = new GatheredBuffers();
+        MotionJPEGWriter.write(frames, delay, motionJPEGLoops, avi);
+        write(output, avi.toArray());
     }
 
-    private void moveJPEGFiles(Split split, JPEGImage[] images, File[] separatedFiles) throws IOException {
+    private void storeJPEGFiles(Split split, JPEGImage[] images, ByteBuffer[] frames) throws IOException {
         LOG.info(bundle.getString("storingJPEG"));
         for (int i = 0, imagesLength = images.length; i < imagesLength; i++) {
-            File jpegFile = split.getJpegFile(images[i].getMPType());
-            jpegFile.delete();
-            separatedFiles[i].renameTo(jpegFile);
+            write(split.getJpegFile(images[i].getMPType()), new ByteBuffer[]{frames[i]});
+        }
+    }
+
+    /**
+     * Writes the contents to the file, or to the archive under the file's path if one is set.
+     */
+    private void write(File output, ByteBuffer[] contents) throws IOException {
+        if (null != archive) {
+            archive.write(output.getPath().replace(File.separatorChar, '/'), contents);
+            return;
+        }
+        FileOutputStream fos = new FileOutputStream(output);
+        try {
+            FileChannel channel = fos.getChannel();
+            ByteBuffer[] buffers = new ByteBuffer[contents.length];
+            long remaining = 0;
+            for (int i = 0; i < contents.length; i++) {
+                buffers[i] = contents[i].duplicate();
+                remaining += buffers[i].remaining();
+            }
+            while (remaining > 0) {
+                remaining -= channel.write(buffers);
+            }
+        } finally {
+            fos.close();
+        }
+    }
+
+    /**
+     * Collects views of the buffers written to it, so that generated bitstreams reach the file or the archive
+     * without being copied.
+     */
+    private static class GatheredBuffers implements GatheringByteChannel {
+        private final List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            long written = 0;
+            for (int i = offset; i < offset + length; i++) {
+                written += write(srcs[i]);
+            }
+            return written;
+        }
+
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        public int write(ByteBuffer src) {
+            int remaining = src.remaining();
+            buffers.add(src.slice());
+            src.position(src.limit());
+            return remaining;
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+        }
+
+        ByteBuffer[] toArray() {
+            return buffers.toArray(new ByteBuffer[buffers.size()]);
         }
     }
 
-    private void generateAnimatedGIF(Split split, int gifDelay, File[] separatedFiles) throws IOException {
+    private void generateAnimatedGIF(File output, int gifDelay, BufferedImage[] frames) throws IOException {
         LOG.info(bundle.getString("generatingAnimatedGIF"));
         Iterator it = ImageIO.getImageWritersByFormatName("gif");
         ImageWriter iw = it.hasNext() ?
                 (ImageWriter) it.next() : null;
-        ImageOutputStream out = ImageIO.createImageOutputStream(split.getGifFile());
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ImageOutputStream out = new MemoryCacheImageOutputStream(baos);
         iw.setOutput(out);
         iw.prepareWriteSequence(null);
 
 
-        for (File separated : separatedFiles) {
-            BufferedImage bi = ImageIO.read(separated);
-
+        for (BufferedImage bi : frames) {
             ImageWriteParam iwp = iw.getDefaultWriteParam();
 
 //                        iwp.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
@@ -276,6 +771,7 @@ public class MPOSeparator {
 
         iw.endWriteSequence();
         out.close();
+        store(output, baos.toByteArray());
     }
 
 }
@@ -0,0 +1,307 @@
+/*
+ * Copyright 2011 Yusuke Yamamoto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stereopic;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Assembles JPEG images into a Multi-Picture Object without decoding them.<br>
+ * An APP2 MP Format segment is spliced after the Exif APP1 of each image: the MP Index IFD followed by the MP
+ * Attribute IFD of the first image into the first image, an MP Attribute IFD into the others. Everything else is written as is from the source buffers with a single
+ * gathering write. An MP Format segment already present in a source is replaced.
+ *
+ * @author Yusuke Yamamoto - yusuke at mac.com
+ */
+class MPOWriter {
+    private static final int SOI = 0xffd8;
+    private static final int APP0 = 0xffe0;
+    private static final int APP1 = 0xffe1;
+    private static final int APP2 = 0xffe2;
+    private static final int MP_FORMAT_IDENTIFIER = 0x4d504600;
+
+    private static final int MPF_VERSION = 45056;
+    private static final int NUMBER_OF_IMAGES = 45057;
+    private static final int MP_ENTRY = 45058;
+    private static final int MP_INDIVIDUAL_NUM = 45313;
+    private static final int BASE_VIEWPOINT_NUM = 45572;
+    private static final int CONVERGENCE_ANGLE = 45573;
+    private static final int BASELINE_LENGTH = 45574;
+
+    private static final short TYPE_LONG = 4;
+    private static final short TYPE_RATIONAL = 5;
+    private static final short TYPE_UNDEFINED = 7;
+    private static final short TYPE_SRATIONAL = 10;
+    // APP2 marker, segment length and MP Format identifier precede the TIFF header offsets are relative to
+    private static final int TIFF_HEADER_START = 2 + 2 + 4;
+    private static final int MP_ENTRY_LENGTH = 16;
+    private static final int IFD_ENTRY_LENGTH = 12;
+    private static final int REPRESENTATIVE_IMAGE = 0x20000000;
+
+    private MPOWriter() {
+    }
+
+    /**
+     * @param jpegs JPEG files in MP index order. Left first for disparity images.
+     */
+    static void write(File[] jpegs, MPEntry.MPType type, File output) throws IOException {
+        ByteBuffer[] buffers = new ByteBuffer[jpegs.length];
+        for (int i = 0; i < jpegs.length; i++) {
+            buffers[i] = MPOSeparator.map(jpegs[i]);
+        }
+        FileOutputStream fos = new FileOutputStream(output);
+        try {
+            write(buffers, type, fos.getChannel());
+        } finally {
+            fos.close();
+        }
+    }
+
+    /**
+     * @param jpegs JPEG bitstreams from position to limit, in MP index order. Left first for disparity images.
+     * @param type  MP type code of every image
+     * @param out   destination, written from its current position
+     * @return number of bytes written
+     */
+    static long write(ByteBuffer[] jpegs, MPEntry.MPType type, GatheringByteChannel out) throws IOException {
+        if (jpegs.length < 1) {
+            throw new IllegalArgumentException("no image");
+        }
+        List<List<ByteBuffer>> segments = new ArrayList<List<ByteBuffer>>(jpegs.length);
+        int[] headLength = new int[jpegs.length];
+        long[] sizes = new long[jpegs.length];
+        for (int i = 0; i < jpegs.length; i++) {
+            List<ByteBuffer> parts = split(jpegs[i]);
+            segments.add(parts);
+            // parts are: SOI + APP0/APP1 segments, other segments up to the frame, and the rest
+            headLength[i] = parts.get(0).remaining();
+            sizes[i] = parts.get(1).remaining() + parts.get(2).remaining() + headLength[i]
+                    + (i == 0 ? indexSegmentLength(jpegs.length) : attributeSegmentLength());
+            if (sizes[i] > 0xffffffffL) {
+                throw new IOException("image " + i + " too large:" + sizes[i]);
+            }
+        }
+        // MP Entry offsets are relative to the MP Endian field of the first image
+        long offsetStart = headLength[0] + 2 + 2 + 4;
+        long[] offsets = new long[jpegs.length];
+        long position = 0;
+        for (int i = 0; i < jpegs.length; i++) {
+            offsets[i] = i == 0 ? 0 : position - offsetStart;
+            position += sizes[i];
+        }
+
+        List<ByteBuffer> gather = new ArrayList<ByteBuffer>(jpegs.length * 4);
+        for (int i = 0; i < jpegs.length; i++) {
+            List<ByteBuffer> parts = segments.get(i);
+            gather.add(parts.get(0));
+            gather.add(i == 0 ? indexSegment(type, sizes, offsets) : attributeSegment(i));
+            gather.add(parts.get(1));
+            gather.add(parts.get(2));
+        }
+        ByteBuffer[] buffers = gather.toArray(new ByteBuffer[gather.size()]);
+        long written = 0;
+        while (written < position) {
+            long w = out.write(buffers);
+            if (w < 0) {
+                throw new IOException("channel closed");
+            }
+            written += w;
+        }
+        return written;
+    }
+
+    /**
+     * @return three views: SOI with the leading APP0/APP1 segments, the remaining APPn segments except MP Format,
+     *         and everything from the first non-APPn marker
+     */
+    private static List<ByteBuffer> split(ByteBuffer jpeg) throws MPOFormatException {
+        ByteBuffer buf = jpeg.slice();
+        buf.order(ByteOrder.BIG_ENDIAN);
+        if (buf.remaining() < 4 || (buf.getShort() & 0xffff) != SOI) {
+            throw new MPOFormatException(SeparationResult.Status.CORRUPT, "not a JPEG image");
+        }
+        ByteBuffer other = ByteBuffer.allocate(0);
+        int headEnd = 2;
+        int otherStart = -1;
+        boolean head = true;
+        List<ByteBuffer> others = new ArrayList<ByteBuffer>();
+        while (buf.remaining() >= 4) {
+            int markerStart = buf.position();
+            int marker = buf.getShort() & 0xffff;
+            if (marker < APP0 || marker > 0xffef) {
+                buf.position(markerStart);
+                break;
+            }
+            int segmentEnd = markerStart + 2 + (buf.getShort() & 0xffff);
+            if (segmentEnd > buf.limit()) {
+                throw new MPOFormatException(SeparationResult.Status.CORRUPT, "segment at " + markerStart + " exceeds the image");
+            }
+            boolean mpf = marker == APP2 && segmentEnd - buf.position() >= 4 && buf.getInt() == MP_FORMAT_IDENTIFIER;
+            if (head && (marker == APP0 || marker == APP1)) {
+                headEnd = segmentEnd;
+            } else {
+                head = false;
+                if (!mpf) {
+                    if (otherStart == -1) {
+                        otherStart = markerStart;
+                    }
+                    others.add(view(buf, markerStart, segmentEnd));
+                }
+            }
+            buf.position(segmentEnd);
+        }
+        if (!others.isEmpty()) {
+            int length = 0;
+            for (ByteBuffer segment : others) {
+                length += segment.remaining();
+            }
+            if (length == buf.position() - otherStart) {
+                // contiguous, keep it a view
+                other = view(buf, otherStart, buf.position());
+            } else {
+                other = ByteBuffer.allocate(length);
+                for (ByteBuffer segment : others) {
+                    other.put(segment);
+                }
+                other.flip();
+            }
+        }
+        List<ByteBuffer> parts = new ArrayList<ByteBuffer>(3);
+        parts.add(view(buf, 0, headEnd));
+        parts.add(other);
+        parts.add(view(buf, buf.position(), buf.limit()));
+        return parts;
+    }
+
+    private static ByteBuffer view(ByteBuffer buf, int from, int to) {
+        ByteBuffer view = buf.duplicate();
+        view.limit(to);
+        view.position(from);
+        return view.slice();
+    }
+
+    private static int indexSegmentLength(int numberOfImages) {
+        return TIFF_HEADER_START + 8 + 2 + 3 * IFD_ENTRY_LENGTH + 4 + numberOfImages * MP_ENTRY_LENGTH
+                + attributeIFDLength(0);
+    }
+
+    private static int attributeSegmentLength() {
+        return TIFF_HEADER_START + 8 + attributeIFDLength(1);
+    }
+
+    private static int attributeIFDLength(int index) {
+        // two rationals follow the IFD
+        return 2 + attributeCount(index) * IFD_ENTRY_LENGTH + 4 + 8 + 8;
+    }
+
+    private static int attributeCount(int index) {
+        // the MP Index IFD of the first image carries its MPF Version
+        return index == 0 ? 4 : 5;
+    }
+
+    private static ByteBuffer indexSegment(MPEntry.MPType type, long[] sizes, long[] offsets) throws IOException {
+        int length = indexSegmentLength(sizes.length);
+        if (length - 2 > 0xffff) {
+            throw new IOException("too many images:" + sizes.length);
+        }
+        ByteBuffer segment = header(length);
+        segment.putShort((short) 3);
+        ifd(segment, MPF_VERSION, TYPE_UNDEFINED, 4, 0x30313030);
+        ifd(segment, NUMBER_OF_IMAGES, TYPE_LONG, 1, sizes.length);
+        int entryOffset = 8 + 2 + 3 * IFD_ENTRY_LENGTH + 4;
+        ifd(segment, MP_ENTRY, TYPE_UNDEFINED, sizes.length * MP_ENTRY_LENGTH, entryOffset);
+        // the MP Attribute IFD of the first image follows the MP Entries
+        segment.putInt(entryOffset + sizes.length * MP_ENTRY_LENGTH);
+        for (int i = 0; i < sizes.length; i++) {
+            segment.putInt((i == 0 ? REPRESENTATIVE_IMAGE : 0) | typeCode(type));
+            segment.putInt((int) sizes[i]);
+            segment.putInt((int) offsets[i]);
+            segment.putShort((short) 0);
+            segment.putShort((short) 0);
+        }
+        attributeIFD(segment, 0);
+        segment.flip();
+        return segment;
+    }
+
+    private static ByteBuffer attributeSegment(int index) {
+        ByteBuffer segment = header(attributeSegmentLength());
+        attributeIFD(segment, index);
+        segment.flip();
+        return segment;
+    }
+
+    private static void attributeIFD(ByteBuffer segment, int index) {
+        int count = attributeCount(index);
+        int valueOffset = segment.position() - TIFF_HEADER_START + 2 + count * IFD_ENTRY_LENGTH + 4;
+        segment.putShort((short) count);
+        if (index != 0) {
+            ifd(segment, MPF_VERSION, TYPE_UNDEFINED, 4, 0x30313030);
+        }
+        ifd(segment, MP_INDIVIDUAL_NUM, TYPE_LONG, 1, index + 1);
+        ifd(segment, BASE_VIEWPOINT_NUM, TYPE_LONG, 1, 1);
+        ifd(segment, CONVERGENCE_ANGLE, TYPE_SRATIONAL, 1, valueOffset);
+        ifd(segment, BASELINE_LENGTH, TYPE_RATIONAL, 1, valueOffset + 8);
+        // no further IFD
+        segment.putInt(0);
+        // the geometry of the camera is not known: 0xFFFFFFFF/0xFFFFFFFF means unknown for both
+        for (int i = 0; i < 4; i++) {
+            segment.putInt(0xffffffff);
+        }
+    }
+
+    private static ByteBuffer header(int length) {
+        ByteBuffer segment = ByteBuffer.allocate(length);
+        segment.order(ByteOrder.BIG_ENDIAN);
+        segment.putShort((short) APP2);
+        segment.putShort((short) (length - 2));
+        segment.putInt(MP_FORMAT_IDENTIFIER);
+        // big endian TIFF header, first IFD right after it
+        segment.putInt(0x4d4d002a);
+        segment.putInt(8);
+        return segment;
+    }
+
+    private static void ifd(ByteBuffer segment, int tag, short type, int count, int value) {
+        segment.putShort((short) tag);
+        segment.putShort(type);
+        segment.putInt(count);
+        segment.putInt(value);
+    }
+
+    private static int typeCode(MPEntry.MPType type) {
+        switch (type) {
+            case CLASS1:
+                return 0x010001;
+            case CLASS2:
+                return 0x010002;
+            case PANORAMA:
+                return 0x020001;
+            case DISPARITY:
+                return 0x020002;
+            case MULTI_ANGLE:
+                return 0x020003;
+            default:
+                return 0;
+        }
+    }
+}
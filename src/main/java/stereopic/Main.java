@@ -26,6 +26,13 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.ResourceBundle;
 
 /**
@@ -34,19 +41,53 @@ import java.util.ResourceBundle;
 public class Main {
     private final static Logger LOG = LoggerFactory.getLogger(Main.class);
     private final static ResourceBundle bundle = ResourceBundle.getBundle("messages");
+
+    /**
+     * shared by every conversion of the run, or null
+     */
+    private static DedupIndex dedupIndex;
+
+    /**
+     * limits of every scheduler of the run, validated once in main
+     */
+    private static int threads;
+    private static long memory;
+
+    private final static int SHARD_SIZE = 16;
+    private final static long SHARD_HEARTBEAT_MILLIS = 10 * 1000;
+    // long enough to ride out NFS hiccups and GC pauses
+    private final static long SHARD_EXPIRY_MILLIS = 60 * 1000;
+
     private static void printHelpAndExit(Options opt){
         HelpFormatter f = new HelpFormatter();
-        f.printHelp("java stereopic.Main [options] filePath or directory", opt);
+        f.printHelp("java stereopic.Main [options] filePath, directory or archive", opt);
         System.exit(-1);
     }
 
-    public static void main(String args[]) throws IOException {
+    public static void main(String args[]) throws IOException, InterruptedException {
         Options opt = new Options();
         opt.addOption("h", false, bundle.getString("h"));
         opt.addOption("gif", false, bundle.getString("gif"));
         opt.addOption("si", false, bundle.getString("si"));
         opt.addOption("width", true, bundle.getString("width"));
         opt.addOption("delay", true, bundle.getString("delay"));
+        opt.addOption("codec", true, bundle.getString("codec"));
+        opt.addOption("preview", false, bundle.getString("preview"));
+        opt.addOption("publish", false, bundle.getString("publish"));
+        opt.addOption("publishurl", true, bundle.getString("publishurl"));
+        opt.addOption("connections", true, bundle.getString("connections"));
+        opt.addOption("assemble", false, bundle.getString("assemble"));
+        opt.addOption("avi", false, bundle.getString("avi"));
+        opt.addOption("lossless", false, bundle.getString("lossless"));
+        opt.addOption("depth", false, bundle.getString("depth"));
+        opt.addOption("match", false, bundle.getString("match"));
+        opt.addOption("crop", true, bundle.getString("crop"));
+        opt.addOption("aspect", true, bundle.getString("aspect"));
+        opt.addOption("dedup", true, bundle.getString("dedup"));
+        opt.addOption("shard", true, bundle.getString("shard"));
+        opt.addOption("threads", true, bundle.getString("threads"));
+        opt.addOption("memory", true, bundle.getString("memory"));
+        opt.addOption("archive", true, bundle.getString("archive"));
         BasicParser parser = new BasicParser();
         CommandLine cl = null;
         try {
@@ -57,10 +98,52 @@ public class Main {
         } catch (ParseException e) {
             printHelpAndExit(opt);
         }
-        if (args.length < 1) {
+        if (cl.getArgs().length < 1) {
             printHelpAndExit(opt);
         }
-        File file = new File(args[0]);
+        if (cl.hasOption("shard") && (cl.hasOption("archive") || cl.hasOption("dedup"))) {
+            // each host would truncate the archive and interleave records in the index
+            LOG.warn(bundle.getString("shardExclusive"));
+            printHelpAndExit(opt);
+        }
+        int connections = 4;
+        try {
+            if (cl.hasOption("crop") || cl.hasOption("aspect")) {
+                Crop.parse(cl.getOptionValue("crop"), cl.getOptionValue("aspect"));
+            }
+            connections = (int) parsePositive(cl, "connections", connections, Integer.MAX_VALUE);
+            threads = (int) parsePositive(cl, "threads", Runtime.getRuntime().availableProcessors(), Integer.MAX_VALUE);
+            // the other half is left to the frame pool and to the publisher
+            memory = cl.hasOption("memory")
+                    ? parsePositive(cl, "memory", 0, Long.MAX_VALUE / 1024 / 1024) * 1024 * 1024
+                    : Runtime.getRuntime().maxMemory() / 2;
+        } catch (IllegalArgumentException iae) {
+            LOG.warn(iae.getMessage());
+            printHelpAndExit(opt);
+        }
+        // options may precede the path
+        String path = cl.getArgs()[0];
+        if (cl.hasOption("codec")) {
+            System.setProperty("stereopic.codec", cl.getOptionValue("codec"));
+        }
+        if (cl.hasOption("assemble")) {
+            if (!assemble(cl.getArgs())) {
+                System.exit(-1);
+            }
+            return;
+        }
+        Publisher publisher = null;
+        if (cl.hasOption("publish") || cl.hasOption("publishurl")) {
+            Uploader uploader = cl.hasOption("publishurl")
+                    ? new HttpUploader(new URL(cl.getOptionValue("publishurl"))) : new TwitterUploader();
+            publisher = new Publisher(uploader, connections);
+        }
+        File file = new File(path);
+        if (!file.exists()) {
+            LOG.warn(file.getAbsolutePath() + " not found.");
+            System.exit(-1);
+        }
+        File[] files = null;
         if (file.isDirectory()) {
             FileFilter ff = new FileFilter() {
                 @Override
@@ -68,34 +151,326 @@ public class Main {
                     return file.isFile() && file.getName().toUpperCase().endsWith(".MPO");
                 }
             };
-            File[] files = file.listFiles(ff);
+            files = file.listFiles(ff);
             if (files.length == 0) {
                 LOG.warn("No .MPO file found.");
                 System.exit(-1);
-            } else {
-                for (File mpo : files) {
-                    process(mpo.getAbsolutePath(), cl);
+            }
+        }
+        ArchiveWriter archive = null;
+        if (cl.hasOption("archive")) {
+            archive = ArchiveWriter.open(new File(cl.getOptionValue("archive")));
+        }
+        if (cl.hasOption("dedup")) {
+            dedupIndex = new DedupIndex(new File(cl.getOptionValue("dedup")));
+        }
+        boolean succeeded = true;
+        try {
+            if (null != files && cl.hasOption("shard")) {
+                processSharded(files, new File(cl.getOptionValue("shard")), cl, publisher, archive);
+            } else if (null != files) {
+                List<SeparationResult> results = Collections.synchronizedList(new ArrayList<SeparationResult>());
+                JobScheduler scheduler = newScheduler();
+                try {
+                    for (File mpo : files) {
+                        submit(scheduler, mpo, null, null != archive ? mpo.getName() : mpo.getAbsolutePath(), cl, publisher, archive, results);
+                    }
+                } finally {
+                    // running jobs still write to the archive and the index closed below
+                    scheduler.close();
                 }
+                succeeded = allSucceeded(results, files.length);
+            } else if (ArchiveReader.isArchive(file)) {
+                succeeded = processArchive(file, cl, publisher, archive);
+            } else {
+                succeeded = process(file, null, null != archive ? file.getName() : path, cl, publisher, archive).isSucceeded();
             }
-        } else if (!file.exists()) {
-            LOG.warn(file.getAbsolutePath() + " not found.");
+        } finally {
+            if (null != archive) {
+                archive.close();
+            }
+            if (null != dedupIndex) {
+                dedupIndex.close();
+            }
+        }
+        if (null != publisher && publisher.close() > 0) {
+            succeeded = false;
+        }
+        if (!succeeded) {
             System.exit(-1);
-        } else {
-            process(args[0], cl);
         }
     }
 
-    private static void process(String path, CommandLine cl) {
-        LOG.info(bundle.getString("processing") + path);
+    /**
+     * Converts the MPO files in the archive while it is being read, without extracting them.<br>
+     * Outputs keep the path of their entry, either in the output archive or relative to the input archive.
+     */
+    private static boolean processArchive(File file, CommandLine cl, Publisher publisher, ArchiveWriter archive)
+            throws IOException, InterruptedException {
+        File root = file.getAbsoluteFile().getParentFile();
+        String rootPath = root.getCanonicalPath();
+        if (!rootPath.endsWith(File.separator)) {
+            rootPath += File.separator;
+        }
+        List<SeparationResult> results = Collections.synchronizedList(new ArrayList<SeparationResult>());
+        JobScheduler scheduler = newScheduler();
+        int count = 0;
+        ArchiveReader reader = ArchiveReader.open(file);
+        try {
+            String entry;
+            while (null != (entry = reader.next())) {
+                if (!entry.toUpperCase().endsWith(".MPO")) {
+                    continue;
+                }
+                // archives made on Windows may separate with backslashes
+                String name = entry.replace('\\', '/');
+                if (name.startsWith("/") || (name.length() > 1 && ':' == name.charAt(1))
+                        || ("/" + name + "/").contains("/../")) {
+                    LOG.warn(entry + ": entry outside the archive, skipped.");
+                    continue;
+                }
+                String outputPath = name;
+                if (null == archive) {
+                    File output = new File(root, name);
+                    // symbolic links may still lead elsewhere
+                    if (!output.getCanonicalPath().startsWith(rootPath)) {
+                        LOG.warn(entry + ": entry outside the archive, skipped.");
+                        continue;
+                    }
+                    output.getParentFile().mkdirs();
+                    outputPath = output.getPath();
+                }
+                submit(scheduler, new File(file, name), ByteBuffer.wrap(reader.read()), outputPath, cl, publisher, archive, results);
+                count++;
+            }
+        } finally {
+            reader.close();
+            scheduler.close();
+        }
+        if (count == 0) {
+            LOG.warn("No .MPO file found.");
+            return false;
+        }
+        return allSucceeded(results, count);
+    }
+
+    /**
+     * @param submitted number of conversions submitted. A job that died without a result counts as a failure.
+     */
+    private static boolean allSucceeded(List<SeparationResult> results, int submitted) {
+        if (results.size() < submitted) {
+            return false;
+        }
+        synchronized (results) {
+            for (SeparationResult result : results) {
+                if (!result.isSucceeded()) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Converts the files together with the other processes sharing the coordination directory.
+     */
+    private static void processSharded(File[] files, File directory, final CommandLine cl, final Publisher publisher
+            , final ArchiveWriter archive) throws IOException, InterruptedException {
+        ShardedBatch batch = new ShardedBatch(directory, SHARD_HEARTBEAT_MILLIS, SHARD_EXPIRY_MILLIS);
+        int converted = batch.run(Arrays.asList(files), SHARD_SIZE, new ShardedBatch.ShardProcessor() {
+            public List<SeparationResult> process(List<File> shard) throws InterruptedException {
+                List<SeparationResult> results = Collections.synchronizedList(new ArrayList<SeparationResult>());
+                JobScheduler scheduler = newScheduler();
+                try {
+                    for (File mpo : shard) {
+                        submit(scheduler, mpo, null, null != archive ? mpo.getName() : mpo.getAbsolutePath()
+                                , cl, publisher, archive, results);
+                    }
+                } catch (InterruptedIOException iioe) {
+                    throw new InterruptedException(iioe.getMessage());
+                } finally {
+                    scheduler.close();
+                }
+                return results;
+            }
+        });
+        LOG.info(converted + " shards converted by this process.");
+    }
+
+    private static JobScheduler newScheduler() {
+        return new JobScheduler(threads, memory);
+    }
+
+    /**
+     * @return value of the option, or defaultValue if it is absent
+     * @throws IllegalArgumentException if the value is not a number from 1 to max
+     */
+    private static long parsePositive(CommandLine cl, String option, long defaultValue, long max) {
+        if (!cl.hasOption(option)) {
+            return defaultValue;
+        }
+        String value = cl.getOptionValue(option);
+        long number;
+        try {
+            number = Long.parseLong(value);
+        } catch (NumberFormatException nfe) {
+            throw new IllegalArgumentException("-" + option + " must be a number:" + value);
+        }
+        if (number < 1 || number > max) {
+            throw new IllegalArgumentException("-" + option + " must be from 1 to " + max + ":" + value);
+        }
+        return number;
+    }
+
+    /**
+     * Blocks until the scheduler admits the conversion.
+     *
+     * @param results receives the result of the conversion, or null
+     */
+    private static void submit(JobScheduler scheduler, final File file, final ByteBuffer mpo, final String outputPath
+            , final CommandLine cl, final Publisher publisher, final ArchiveWriter archive
+            , final List<SeparationResult> results) throws InterruptedIOException {
+        long footprint = estimateFootprint(file, mpo, cl) + (null != mpo ? mpo.capacity() : 0);
+        scheduler.submit(new Runnable() {
+            public void run() {
+                SeparationResult result = process(file, mpo, outputPath, cl, publisher, archive);
+                if (null != results) {
+                    results.add(result);
+                }
+            }
+        }, footprint);
+    }
+
+    /**
+     * @param mpo        content of the file, or null to read the file
+     * @param outputPath path the output names are derived from
+     */
+    private static SeparationResult process(File file, ByteBuffer mpo, String outputPath, CommandLine cl
+            , Publisher publisher, ArchiveWriter archive) {
+        LOG.info(bundle.getString("processing") + file.getPath());
+        MPOSeparator mpos = newSeparator(cl, publisher);
+        mpos.setArchive(archive);
+        int gifDelay = getGifDelay(cl);
+        int stereoImageWidth = getStereoImageWidth(cl);
+        if (cl.hasOption("preview")) {
+            return mpos.preview(file, mpo, new FileOutput(outputPath, true), cl.hasOption("gif"), gifDelay, true, stereoImageWidth);
+        }
+        return mpos.separate(file, mpo, new FileOutput(outputPath, true), cl.hasOption("si"), cl.hasOption("gif"), gifDelay, true, stereoImageWidth);
+    }
+
+    /**
+     * @return heap needed to process the file, or 0 if it cannot be read, leaving the error to {@link #process}
+     */
+    private static long estimateFootprint(File file, ByteBuffer mpo, CommandLine cl) {
+        MPOSeparator mpos = newSeparator(cl, null);
+        try {
+            if (null == mpo) {
+                mpo = MPOSeparator.map(file);
+            }
+            if (cl.hasOption("preview")) {
+                return mpos.estimatePreviewFootprint(mpo, cl.hasOption("gif"), true, getStereoImageWidth(cl));
+            }
+            return mpos.estimateFootprint(mpo, cl.hasOption("gif"), true, getStereoImageWidth(cl));
+        } catch (IOException ioe) {
+            return 0;
+        }
+    }
+
+    private static MPOSeparator newSeparator(CommandLine cl, Publisher publisher) {
         MPOSeparator mpos = new MPOSeparator();
+        mpos.setPublisher(publisher);
+        if (cl.hasOption("avi")) {
+            mpos.setMotionJPEGLoops(10);
+        }
+        mpos.setLosslessStereo(cl.hasOption("lossless"));
+        mpos.setDepthMap(cl.hasOption("depth"));
+        mpos.setColorMatching(cl.hasOption("match"));
+        mpos.setDedupIndex(dedupIndex);
+        if (cl.hasOption("crop") || cl.hasOption("aspect")) {
+            mpos.setCrop(Crop.parse(cl.getOptionValue("crop"), cl.getOptionValue("aspect")));
+        }
+        return mpos;
+    }
+
+    private static int getGifDelay(CommandLine cl) {
         int gifDelay = 30;
         if(cl.hasOption("delay")){
             gifDelay = Integer.parseInt(cl.getOptionValue("delay"));
         }
+        return gifDelay;
+    }
+
+    private static int getStereoImageWidth(CommandLine cl) {
         int stereoImageWidth = 450;
         if(cl.hasOption("width")){
             stereoImageWidth = Integer.parseInt(cl.getOptionValue("width"));
         }
-        mpos.separate(new File(path), new FileOutput(path, true), cl.hasOption("si"), cl.hasOption("gif"), gifDelay, true, stereoImageWidth);
+        return stereoImageWidth;
+    }
+
+    /**
+     * Packs LEFT-L.jpg and LEFT-R.jpg pairs into LEFT.MPO. Existing MPO files are never overwritten.
+     *
+     * @param paths a directory of pairs, or left and right JPEG files optionally followed by the output
+     */
+    private static boolean assemble(String[] paths) {
+        File file = new File(paths[0]);
+        if (file.isDirectory()) {
+            File[] lefts = file.listFiles(new FileFilter() {
+                @Override
+                public boolean accept(File file) {
+                    return file.isFile() && file.getName().toUpperCase().endsWith("-L.JPG");
+                }
+            });
+            boolean succeeded = true;
+            int assembled = 0;
+            for (File left : lefts) {
+                String name = left.getName();
+                File right = new File(left.getParentFile(), name.substring(0, name.length() - 5) + "R" + name.substring(name.length() - 4));
+                if (right.isFile()) {
+                    succeeded &= assemble(left, right, getMPOFile(left));
+                    assembled++;
+                }
+            }
+            if (assembled == 0) {
+                LOG.warn("No -L.jpg / -R.jpg pair found.");
+                return false;
+            }
+            return succeeded;
+        } else if (paths.length < 2) {
+            LOG.warn("specify left and right JPEG files.");
+            return false;
+        } else {
+            File left = new File(paths[0]);
+            return assemble(left, new File(paths[1]), paths.length > 2 ? new File(paths[2]) : getMPOFile(left));
+        }
+    }
+
+    private static File getMPOFile(File left) {
+        String name = left.getName();
+        int extensionIndex = name.lastIndexOf(".");
+        if (-1 != extensionIndex) {
+            name = name.substring(0, extensionIndex);
+        }
+        if (name.toUpperCase().endsWith("-L")) {
+            name = name.substring(0, name.length() - 2);
+        }
+        return new File(left.getParentFile(), name + ".MPO");
+    }
+
+    private static boolean assemble(File left, File right, File output) {
+        if (output.exists()) {
+            // LEFT.MPO next to LEFT-L.jpg is likely the original the pair was separated from
+            LOG.warn(output.getAbsolutePath() + bundle.getString("notOverwritten"));
+            return false;
+        }
+        LOG.info(bundle.getString("assembling") + output.getPath());
+        try {
+            MPOWriter.write(new File[]{left, right}, MPEntry.MPType.DISPARITY, output);
+            return true;
+        } catch (IOException ioe) {
+            LOG.warn(left + ":" + ioe.getMessage());
+            return false;
+        }
     }
 }
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2011 Yusuke Yamamoto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stereopic;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes JPEG bitstreams as the frames of a Motion-JPEG AVI, without decoding them.<br>
+ * The frame sequence is repeated loops times since AVI has no looping of its own.
+ *
+ * @author Yusuke Yamamoto - yusuke at mac.com
+ */
+class MotionJPEGWriter {
+    private static final int AVIF_HASINDEX = 0x10;
+    private static final int AVIIF_KEYFRAME = 0x10;
+
+    private MotionJPEGWriter() {
+    }
+
+    /**
+     * @param jpegs frames from position to limit, all of the size of the first one
+     * @param delay display time of each frame in 1/100 seconds, at least 1
+     * @param loops number of times the frame sequence is written
+     * @param out   destination, written from its current position
+     * @return number of bytes written
+     */
+    static long write(ByteBuffer[] jpegs, int delay, int loops, GatheringByteChannel out) throws IOException {
+        // a zero frame duration or stream scale makes the rate undefined
+        delay = Math.max(1, delay);
+        FrameHeader frameHeader = FrameHeader.read(jpegs[0]);
+        int width = frameHeader.getWidth();
+        int height = frameHeader.getHeight();
+        int frames = jpegs.length * loops;
+        long moviLength = 4;
+        int maxFrame = 0;
+        for (ByteBuffer jpeg : jpegs) {
+            moviLength += (8 + padded(jpeg.remaining())) * (long) loops;
+            maxFrame = Math.max(maxFrame, jpeg.remaining());
+        }
+        long riffLength = 4 + (8 + 4 + 8 + 56 + 8 + 4 + 8 + 56 + 8 + 40) + 8 + moviLength + 8 + 16L * frames;
+        if (riffLength > 0xffffffffL) {
+            throw new IOException("AVI too large:" + riffLength);
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(12 + 12 + 8 + 56 + 12 + 8 + 56 + 8 + 40 + 12);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        fourCC(header, "RIFF");
+        header.putInt((int) riffLength);
+        fourCC(header, "AVI ");
+
+        fourCC(header, "LIST");
+        header.putInt(4 + 8 + 56 + 8 + 4 + 8 + 56 + 8 + 40);
+        fourCC(header, "hdrl");
+        fourCC(header, "avih");
+        header.putInt(56);
+        header.putInt(delay * 10000);
+        header.putInt((int) Math.min(Integer.MAX_VALUE, (long) maxFrame * 100 / delay));
+        header.putInt(0);
+        header.putInt(AVIF_HASINDEX);
+        header.putInt(frames);
+        header.putInt(0);
+        header.putInt(1);
+        header.putInt(maxFrame);
+        header.putInt(width);
+        header.putInt(height);
+        header.put(new byte[16]);
+
+        fourCC(header, "LIST");
+        header.putInt(4 + 8 + 56 + 8 + 40);
+        fourCC(header, "strl");
+        fourCC(header, "strh");
+        header.putInt(56);
+        fourCC(header, "vids");
+        fourCC(header, "MJPG");
+        header.putInt(0);
+        header.putShort((short) 0);
+        header.putShort((short) 0);
+        header.putInt(0);
+        // rate / scale = frames per second
+        header.putInt(delay);
+        header.putInt(100);
+        header.putInt(0);
+        header.putInt(frames);
+        header.putInt(maxFrame);
+        header.putInt(-1);
+        header.putInt(0);
+        header.putShort((short) 0);
+        header.putShort((short) 0);
+        header.putShort((short) width);
+        header.putShort((short) height);
+        fourCC(header, "strf");
+        header.putInt(40);
+        header.putInt(40);
+        header.putInt(width);
+        header.putInt(height);
+        header.putShort((short) 1);
+        header.putShort((short) 24);
+        fourCC(header, "MJPG");
+        header.putInt(width * height * 3);
+        header.put(new byte[16]);
+
+        fourCC(header, "LIST");
+        header.putInt((int) moviLength);
+        fourCC(header, "movi");
+        header.flip();
+
+        ByteBuffer index = ByteBuffer.allocate(8 + 16 * frames);
+        index.order(ByteOrder.LITTLE_ENDIAN);
+        fourCC(index, "idx1");
+        index.putInt(16 * frames);
+
+        List<ByteBuffer> gather = new ArrayList<ByteBuffer>(frames * 3 + 2);
+        gather.add(header);
+        // idx1 offsets are relative to the "movi" fourcc
+        long offset = 4;
+        for (int loop = 0; loop < loops; loop++) {
+            for (ByteBuffer jpeg : jpegs) {
+                int size = jpeg.remaining();
+                ByteBuffer chunk = ByteBuffer.allocate(8);
+                chunk.order(ByteOrder.LITTLE_ENDIAN);
+                fourCC(chunk, "00dc");
+                chunk.putInt(size);
+                chunk.flip();
+                gather.add(chunk);
+                gather.add(jpeg.duplicate());
+                if (size % 2 != 0) {
+                    gather.add(ByteBuffer.allocate(1));
+                }
+                fourCC(index, "00dc");
+                index.putInt(AVIIF_KEYFRAME);
+                index.putInt((int) offset);
+                index.putInt(size);
+                offset += 8 + padded(size);
+            }
+        }
+        index.flip();
+        gather.add(index);
+
+        ByteBuffer[] buffers = gather.toArray(new ByteBuffer[gather.size()]);
+        long total = 8 + riffLength;
+        long written = 0;
+        while (written < total) {
+            long w = out.write(buffers);
+            if (w < 0) {
+                throw new IOException("channel closed");
+            }
+            written += w;
+        }
+        return written;
+    }
+
+    private static long padded(int size) {
+        return size + (size % 2);
+    }
+
+    private static void fourCC(ByteBuffer buf, String fourCC) {
+        for (int i = 0; i < 4; i++) {
+            buf.put((byte) fourCC.charAt(i));
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2011 Yusuke Yamamoto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stereopic;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Uploads generated images in the background while conversion goes on.<br>
+ * At most connections uploads run at once, and at most connections * 4 images wait in memory; beyond that
+ * {@link #publish} blocks the converter. Failed uploads are retried with exponential backoff, and a rate limit
+ * reported by the service pauses every connection until it is lifted.
+ *
+ * @author Yusuke Yamamoto - yusuke at mac.com
+ */
+public class Publisher {
+    private final static Logger LOG = LoggerFactory.getLogger(Publisher.class);
+
+    private final Uploader uploader;
+    private final ExecutorService connections;
+    private final Semaphore pending;
+    private final int maxAttempts;
+    private final long initialBackoffMillis;
+    private final AtomicInteger failures = new AtomicInteger();
+    private volatile long pausedUntil = 0;
+
+    public Publisher(Uploader uploader, int connections) {
+        this(uploader, connections, 5, 1000);
+    }
+
+    Publisher(Uploader uploader, int connections, int maxAttempts, long initialBackoffMillis) {
+        this.uploader = uploader;
+        this.connections = Executors.newFixedThreadPool(connections, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "stereopic-publisher-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.pending = new Semaphore(connections * 4);
+        this.maxAttempts = maxAttempts;
+        this.initialBackoffMillis = initialBackoffMillis;
+    }
+
+    /**
+     * @param content encoded image. Must not be modified afterwards; it is uploaded as is, without a copy.
+     * @return the URL or id returned by the uploader
+     */
+    public Future<String> publish(final String fileName, final byte[] content, final String message) throws InterruptedIOException {
+        try {
+            pending.acquire();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for an upload slot");
+        }
+        try {
+            return connections.submit(new Callable<String>() {
+                public String call() throws IOException, InterruptedException {
+                    try {
+                        String url = upload(fileName, content, message);
+                        LOG.info("published " + fileName + ": " + url);
+                        return url;
+                    } catch (IOException ioe) {
+                        failures.incrementAndGet();
+                        LOG.warn("failed to publish " + fileName + ":" + ioe.getMessage());
+                        throw ioe;
+                    } finally {
+                        pending.release();
+                    }
+                }
+            });
+        } catch (RuntimeException re) {
+            pending.release();
+            throw re;
+        }
+    }
+
+    private String upload(String fileName, byte[] content, String message) throws IOException, InterruptedException {
+        long backoff = initialBackoffMillis;
+        for (int attempt = 1; ; attempt++) {
+            long wait;
+            while ((wait = pausedUntil - System.currentTimeMillis()) > 0) {
+                Thread.sleep(wait);
+            }
+            try {
+                return uploader.upload(fileName, new ByteArrayInputStream(content), message);
+            } catch (IOException ioe) {
+                boolean retryable = !(ioe instanceof UploadException) || ((UploadException) ioe).isRetryable();
+                if (!retryable || attempt >= maxAttempts) {
+                    throw ioe;
+                }
+                long retryAfter = ioe instanceof UploadException ? ((UploadException) ioe).getRetryAfterMillis() : -1;
+                if (retryAfter >= 0) {
+                    // rate limited: hold back every connection, not just this one
+                    pausedUntil = Math.max(pausedUntil, System.currentTimeMillis() + Math.max(retryAfter, backoff));
+                    LOG.info("rate limited, pausing uploads for " + Math.max(retryAfter, backoff) + "ms");
+                } else {
+                    LOG.debug("retrying " + fileName + " in " + backoff + "ms:" + ioe.getMessage());
+                    Thread.sleep(backoff);
+                }
+                backoff *= 2;
+            }
+        }
+    }
+
+    /**
+     * Waits for all submitted uploads to complete.
+     *
+     * @return number of images that could not be published
+     */
+    public int close() throws InterruptedException {
+        connections.shutdown();
+        while (!connections.awaitTermination(1, TimeUnit.MINUTES)) {
+            LOG.info("waiting for uploads to complete");
+        }
+        return failures.get();
+    }
+}
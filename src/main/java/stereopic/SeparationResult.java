@@ -0,0 +1,123 @@
+/*
+ * Copyright 2011 Yusuke Yamamoto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stereopic;
+
+import java.io.File;
+
+/**
+ * Outcome of {@link MPOSeparator#separate}.
+ *
+ * @author Yusuke Yamamoto - yusuke at mac.com
+ */
+public class SeparationResult {
+    enum Status {
+        /**
+         * all requested outputs were generated
+         */
+        SEPARATED
+        /**
+         * the same frames were already converted from another file, nothing was generated
+         */
+        , DUPLICATE
+        /**
+         * the file is not a JPEG, or carries no MP Format segment
+         */
+        , NOT_MPO
+        /**
+         * the MP Format segment is present but inconsistent with the file
+         */
+        , CORRUPT
+        /**
+         * reading the source or writing an output failed
+         */
+        , IO_ERROR
+    }
+
+    private final File file;
+    private final Status status;
+    private final JPEGImage[] images;
+    private final Exception cause;
+    private final String duplicateOf;
+
+    private SeparationResult(File file, Status status, JPEGImage[] images, Exception cause, String duplicateOf) {
+        this.file = file;
+        this.status = status;
+        this.images = images;
+        this.cause = cause;
+        this.duplicateOf = duplicateOf;
+    }
+
+    static SeparationResult separated(File file, JPEGImage[] images) {
+        return new SeparationResult(file, Status.SEPARATED, images, null, null);
+    }
+
+    static SeparationResult duplicate(File file, JPEGImage[] images, String duplicateOf) {
+        return new SeparationResult(file, Status.DUPLICATE, images, null, duplicateOf);
+    }
+
+    static SeparationResult failed(File file, MPOFormatException cause) {
+        return new SeparationResult(file, cause.getStatus(), null, cause, null);
+    }
+
+    static SeparationResult failed(File file, Exception cause) {
+        return new SeparationResult(file, Status.IO_ERROR, null, cause, null);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public boolean isSeparated() {
+        return status == Status.SEPARATED;
+    }
+
+    /**
+     * @return true if the file was converted, or skipped as a copy of a file already converted
+     */
+    public boolean isSucceeded() {
+        return status == Status.SEPARATED || status == Status.DUPLICATE;
+    }
+
+    /**
+     * @return path of the file already converted with the same frames, or null unless duplicate
+     */
+    public String getDuplicateOf() {
+        return duplicateOf;
+    }
+
+    /**
+     * @return images found in the MP index, or null unless separated or duplicate
+     */
+    public JPEGImage[] getImages() {
+        return images;
+    }
+
+    /**
+     * @return the exception that caused the failure, or null if separated
+     */
+    public Exception getCause() {
+        return cause;
+    }
+
+    public String toString() {
+        return file + ":" + status + (null == cause ? "" : ":" + cause.getMessage())
+                + (null == duplicateOf ? "" : ":" + duplicateOf);
+    }
+}
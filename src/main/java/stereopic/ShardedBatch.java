@@ -0,0 +1,330 @@
+/*
+ * Copyright 2011 Yusuke Yamamoto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stereopic;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shares a batch between processes on any number of hosts through a directory on a shared file system, without a
+ * coordinator.<br>
+ * Files are sorted by name and cut into shards of a fixed size, so every worker sees the same shards. A worker
+ * claims a shard by creating shard-N.lease with {@link File#createNewFile}, which only one worker can do, and keeps
+ * touching the lease while it converts the shard. A lease left untouched for longer than the expiry, as measured by
+ * the clock of the worker watching it, belongs to a crashed worker; it is renamed away and the shard claimed again.
+ * A converted shard is recorded as shard-N.done, written aside and renamed into place, listing the result of each
+ * file. Together the done files form the completion log; appending to a single shared file is not atomic on NFS.<br>
+ * Leases make duplicate work rare, and the atomic done files make it harmless: the first record of a shard wins.
+ *
+ * @author Yusuke Yamamoto - yusuke at mac.com
+ */
+public class ShardedBatch {
+    private final static Logger LOG = LoggerFactory.getLogger(ShardedBatch.class);
+
+    public interface ShardProcessor {
+        /**
+         * @return result of each file of the shard
+         */
+        List<SeparationResult> process(List<File> files) throws InterruptedException;
+    }
+
+    private final File directory;
+    private final long heartbeatMillis;
+    private final long expiryMillis;
+    private final String owner;
+    private final Set<Integer> held = Collections.synchronizedSet(new HashSet<Integer>());
+    private final Set<Integer> lost = Collections.synchronizedSet(new HashSet<Integer>());
+    // last modified time of each lease held by others, and when this worker saw it change
+    private final Map<Integer, long[]> observed = new HashMap<Integer, long[]>();
+
+    /**
+     * @param directory       shared directory holding the leases and the completion log
+     * @param heartbeatMillis interval at which held leases are touched
+     * @param expiryMillis    time after which a lease nobody touches is taken over. Several heartbeats long.
+     */
+    public ShardedBatch(File directory, long heartbeatMillis, long expiryMillis) {
+        this.directory = directory;
+        this.heartbeatMillis = heartbeatMillis;
+        this.expiryMillis = expiryMillis;
+        // pid@host, unique among workers even when pids are reused
+        this.owner = ManagementFactory.getRuntimeMXBean().getName() + "-" + UUID.randomUUID();
+    }
+
+    String getOwner() {
+        return owner;
+    }
+
+    /**
+     * Converts shards until every shard of the batch is done, by this worker or by others.
+     *
+     * @return number of shards converted by this worker
+     */
+    public int run(List<File> files, int shardSize, ShardProcessor processor) throws IOException, InterruptedException {
+        if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException("cannot create " + directory);
+        }
+        List<File> sorted = new ArrayList<File>(files);
+        Collections.sort(sorted, new Comparator<File>() {
+            public int compare(File f1, File f2) {
+                return f1.getName().compareTo(f2.getName());
+            }
+        });
+        int shards = (sorted.size() + shardSize - 1) / shardSize;
+        ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "stereopic-heartbeat");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        heartbeat.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                touchLeases();
+            }
+        }, heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+        int converted = 0;
+        try {
+            while (true) {
+                boolean pending = false;
+                for (int shard = 0; shard < shards; shard++) {
+                    if (getDone(shard).exists()) {
+                        continue;
+                    }
+                    pending = true;
+                    if (!claim(shard)) {
+                        continue;
+                    }
+                    try {
+                        // completed between the check and the claim
+                        if (getDone(shard).exists()) {
+                            continue;
+                        }
+                        LOG.info("shard " + shard + " claimed by " + owner);
+                        List<SeparationResult> results = processor.process(
+                                sorted.subList(shard * shardSize, Math.min(sorted.size(), (shard + 1) * shardSize)));
+                        if (lost.contains(shard)) {
+                            LOG.warn("lease of shard " + shard + " lost, leaving it to its new owner");
+                            continue;
+                        }
+                        if (complete(shard, results)) {
+                            converted++;
+                        }
+                    } finally {
+                        release(shard);
+                    }
+                }
+                if (!pending) {
+                    return converted;
+                }
+                // the remaining shards are leased by others, watch for them to complete or expire
+                Thread.sleep(heartbeatMillis);
+            }
+        } finally {
+            heartbeat.shutdownNow();
+        }
+    }
+
+    /**
+     * @return true if this worker now holds the lease of the shard
+     */
+    boolean claim(int shard) throws IOException {
+        File lease = getLease(shard);
+        if (!lease.createNewFile()) {
+            if (!isExpired(shard, lease)) {
+                return false;
+            }
+            File expired = new File(directory, lease.getName() + "." + owner + ".expired");
+            if (!lease.renameTo(expired)) {
+                // taken over by another worker first
+                return false;
+            }
+            LOG.info("lease of shard " + shard + " expired, taking over from " + read(expired));
+            expired.delete();
+            synchronized (observed) {
+                observed.remove(shard);
+            }
+            if (!lease.createNewFile()) {
+                return false;
+            }
+        }
+        write(lease, owner);
+        lost.remove(shard);
+        held.add(shard);
+        return true;
+    }
+
+    /**
+     * Deletes the lease of the shard, unless another worker has taken it over.
+     */
+    void release(int shard) {
+        held.remove(shard);
+        File lease = getLease(shard);
+        if (owner.equals(read(lease))) {
+            lease.delete();
+        }
+    }
+
+    /**
+     * @return true if the lease kept the same last modified time for longer than the expiry
+     */
+    private boolean isExpired(int shard, File lease) {
+        long lastModified = lease.lastModified();
+        if (0 == lastModified) {
+            // released meanwhile, claim it on the next round
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        synchronized (observed) {
+            long[] seen = observed.get(shard);
+            if (null == seen || seen[0] != lastModified) {
+                observed.put(shard, new long[]{lastModified, now});
+                return false;
+            }
+            return now - seen[1] > expiryMillis;
+        }
+    }
+
+    /**
+     * Touches every held lease, and gives up those taken over by another worker.
+     */
+    private void touchLeases() {
+        Integer[] shards;
+        synchronized (held) {
+            shards = held.toArray(new Integer[held.size()]);
+        }
+        for (Integer shard : shards) {
+            File lease = getLease(shard);
+            if (!owner.equals(read(lease))) {
+                lost.add(shard);
+                held.remove(shard);
+            } else if (!lease.setLastModified(System.currentTimeMillis())) {
+                LOG.warn("failed to touch " + lease);
+            }
+        }
+    }
+
+    /**
+     * Records the results of the shard unless another worker recorded it first.
+     *
+     * @return true if this worker's record was kept
+     */
+    private boolean complete(int shard, List<SeparationResult> results) throws IOException {
+        StringBuilder record = new StringBuilder();
+        for (SeparationResult result : results) {
+            record.append(result.getFile().getName()).append('\t').append(result.getStatus());
+            if (null != result.getDuplicateOf()) {
+                record.append('\t').append(result.getDuplicateOf());
+            }
+            record.append('\n');
+        }
+        File done = getDone(shard);
+        File temporary = new File(directory, done.getName() + "." + owner + ".tmp");
+        write(temporary, record.toString());
+        // rename replaces an existing file on POSIX, so check first; a race is harmless, both records are complete
+        if (!done.exists() && temporary.renameTo(done)) {
+            return true;
+        }
+        temporary.delete();
+        return false;
+    }
+
+    /**
+     * @return lines of every shard completed so far, each holding a file name and its status separated by a tab
+     */
+    static List<String> readCompletionLog(File directory) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        File[] records = directory.listFiles();
+        if (null == records) {
+            return lines;
+        }
+        for (File record : records) {
+            if (!record.getName().matches("shard-\\d+\\.done")) {
+                continue;
+            }
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(record), "UTF-8"));
+            try {
+                String line;
+                while (null != (line = reader.readLine())) {
+                    lines.add(line);
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        return lines;
+    }
+
+    private File getLease(int shard) {
+        return new File(directory, "shard-" + shard + ".lease");
+    }
+
+    private File getDone(int shard) {
+        return new File(directory, "shard-" + shard + ".done");
+    }
+
+    private static void write(File file, String content) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * @return content of the file, or null if it cannot be read
+     */
+    private static String read(File file) {
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                StringBuilder content = new StringBuilder();
+                String line;
+                while (null != (line = reader.readLine())) {
+                    content.append(line);
+                }
+                return content.toString();
+            } finally {
+                reader.close();
+            }
+        } catch (IOException ioe) {
+            return null;
+        }
+    }
+}
@@ -26,4 +26,12 @@ public interface Split {
     File getStereoJpegFile() throws IOException;
 
      File getGifFile() throws IOException;
+
+    File getPreviewJpegFile() throws IOException;
+
+    File getPreviewGifFile() throws IOException;
+
+    File getMotionJpegFile() throws IOException;
+
+    File getDepthMapFile() throws IOException;
 }
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2011 Yusuke Yamamoto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stereopic;
+
+import twitter4j.TwitterException;
+import twitter4j.media.ImageUpload;
+import twitter4j.media.ImageUploadFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Uploads through twitter4j-media-support, configured by twitter4j.properties.
+ *
+ * @author Yusuke Yamamoto - yusuke at mac.com
+ */
+public class TwitterUploader implements Uploader {
+    private final ImageUpload upload;
+
+    public TwitterUploader() {
+        this(new ImageUploadFactory().getInstance());
+    }
+
+    TwitterUploader(ImageUpload upload) {
+        this.upload = upload;
+    }
+
+    public String upload(String fileName, InputStream content, String message) throws IOException {
+        try {
+            return upload.upload(fileName, content, message);
+        } catch (TwitterException te) {
+            if (te.isCausedByNetworkIssue()) {
+                IOException ioe = new IOException(te.getMessage());
+                ioe.initCause(te);
+                throw ioe;
+            }
+            int status = te.getStatusCode();
+            boolean rateLimited = te.exceededRateLimitation() || status == 420 || status == 429;
+            long retryAfterMillis = -1;
+            if (rateLimited) {
+                retryAfterMillis = Math.max(0, te.getRetryAfter()) * 1000L;
+            }
+            UploadException ue = new UploadException(te.getMessage(), rateLimited || status >= 500, retryAfterMillis);
+            ue.initCause(te);
+            throw ue;
+        }
+    }
+}
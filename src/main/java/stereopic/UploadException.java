@@ -0,0 +1,49 @@
+/*
+ * Copyright 2011 Yusuke Yamamoto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stereopic;
+
+import java.io.IOException;
+
+/**
+ * Thrown by an {@link Uploader} when the service refused an upload.
+ *
+ * @author Yusuke Yamamoto - yusuke at mac.com
+ */
+public class UploadException extends IOException {
+    private static final long serialVersionUID = 6517430934861420743L;
+    private final boolean retryable;
+    private final long retryAfterMillis;
+
+    /**
+     * @param retryAfterMillis time the service asked us to wait before the next request, or -1 if unspecified
+     */
+    UploadException(String message, boolean retryable, long retryAfterMillis) {
+        super(message);
+        this.retryable = retryable;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    public boolean isRetryable() {
+        return retryable;
+    }
+
+    /**
+     * @return milliseconds to wait before any further upload, or -1 if the service is not rate limiting us
+     */
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2011 Yusuke Yamamoto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stereopic;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Uploads a single generated image. Retries are handled by {@link Publisher}.
+ *
+ * @author Yusuke Yamamoto - yusuke at mac.com
+ */
+public interface Uploader {
+    /**
+     * @return the URL or id of the uploaded media
+     * @throws UploadException when the service refused the upload
+     * @throws IOException     when the connection failed. Treated as retryable.
+     */
+    String upload(String fileName, InputStream content, String message) throws IOException;
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2011 Yusuke Yamamoto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stereopic;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Baseline timings of the {@link JPEGCodec}s on the bundled MPO samples.<br>
+ * Only the ImageIO codec ships with sgram, so out of the box this measures that baseline and nothing else; a
+ * comparison needs the jar of another codec, registered in META-INF/services/stereopic.JPEGCodec, on the
+ * classpath.<br>
+ * Run from the project root: java stereopic.CodecBenchmark [iterations] [mpo files...]
+ *
+ * @author Yusuke Yamamoto - yusuke at mac.com
+ */
+public class CodecBenchmark {
+    public static void main(String[] args) throws IOException {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        String[] files = args.length > 1 ? copyOfRange(args, 1) : new String[]{"HNI_0001.MPO", "HNI_0002.MPO"};
+        List<byte[]> frames = new ArrayList<byte[]>();
+        for (String file : files) {
+            ByteBuffer mpo = MPOSeparator.map(new File(file));
+            for (JPEGImage image : MPOParser.parse(mpo)) {
+                byte[] frame = new byte[(int) image.getSize()];
+                image.slice(mpo).get(frame);
+                frames.add(frame);
+            }
+        }
+        System.out.println(frames.size() + " frames, " + iterations + " iterations");
+        List<JPEGCodec> codecs = JPEGCodecs.available();
+        if (codecs.size() == 1) {
+            System.out.println("no other codec on the classpath, baseline only");
+        }
+        System.out.println("codec\tdecode(ms)\tdecode 1/2(ms)\tencode(ms)");
+        for (JPEGCodec codec : codecs) {
+            // warm up
+            run(codec, frames, Math.max(1, iterations / 5));
+            double[] result = run(codec, frames, iterations);
+            System.out.println(codec.getName() + "\t" + format(result[0]) + "\t" + format(result[1]) + "\t" + format(result[2]));
+        }
+    }
+
+    /**
+     * @return average milliseconds per frame for full decode, scaled decode and encode
+     */
+    private static double[] run(JPEGCodec codec, List<byte[]> frames, int iterations) throws IOException {
+        long decode = 0;
+        long scaled = 0;
+        long encode = 0;
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        for (int i = 0; i < iterations; i++) {
+            for (byte[] frame : frames) {
+                long start = System.nanoTime();
+                BufferedImage image = codec.decode(new ByteArrayInputStream(frame));
+                decode += System.nanoTime() - start;
+
+                start = System.nanoTime();
+                codec.decode(new ByteArrayInputStream(frame), 2);
+                scaled += System.nanoTime() - start;
+
+                baos.reset();
+                start = System.nanoTime();
+                codec.encode(image, baos);
+                encode += System.nanoTime() - start;
+            }
+        }
+        double count = (double) iterations * frames.size() * 1000000;
+        return new double[]{decode / count, scaled / count, encode / count};
+    }
+
+    private static String format(double millis) {
+        return String.valueOf(Math.round(millis * 100) / 100d);
+    }
+
+    private static String[] copyOfRange(String[] args, int from) {
+        String[] copy = new String[args.length - from];
+        System.arraycopy(args, from, copy, 0, copy.length);
+        return copy;
+    }
+}
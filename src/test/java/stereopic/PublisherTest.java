@@ -0,0 +1,118 @@
+/*
+ * Copyright 2011 Yusuke Yamamoto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stereopic;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PublisherTest extends junit.framework.TestCase {
+    private HttpServer server;
+    private final AtomicInteger requests = new AtomicInteger();
+    private volatile byte[] lastBody;
+    private volatile int[] statuses;
+
+    public PublisherTest(String name) {
+        super(name);
+    }
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/upload", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                int request = requests.getAndIncrement();
+                lastBody = read(exchange.getRequestBody());
+                int status = statuses[Math.min(request, statuses.length - 1)];
+                if (status == 429) {
+                    exchange.getResponseHeaders().add("Retry-After", "0");
+                }
+                byte[] response = ("http://stub/" + request).getBytes("UTF-8");
+                exchange.sendResponseHeaders(status, response.length);
+                OutputStream os = exchange.getResponseBody();
+                os.write(response);
+                os.close();
+            }
+        });
+        server.start();
+    }
+
+    protected void tearDown() throws Exception {
+        server.stop(0);
+        super.tearDown();
+    }
+
+    public void testRetryAfterRateLimit() throws Exception {
+        statuses = new int[]{429, 503, 200};
+        Publisher publisher = new Publisher(new HttpUploader(getURL()), 2, 5, 10);
+        byte[] content = "stereo-jpeg-bytes".getBytes("UTF-8");
+        Future<String> url = publisher.publish("HNI_0001-stereo.jpg", content, "HNI_0001");
+        assertEquals("http://stub/2", url.get());
+        assertEquals(0, publisher.close());
+        assertEquals(3, requests.get());
+        String body = new String(lastBody, "UTF-8");
+        assertTrue(body.contains("filename=\"HNI_0001-stereo.jpg\""));
+        assertTrue(body.contains("stereo-jpeg-bytes"));
+    }
+
+    public void testGiveUpOnClientError() throws Exception {
+        statuses = new int[]{400};
+        Publisher publisher = new Publisher(new HttpUploader(getURL()), 1, 5, 10);
+        Future<String> url = publisher.publish("HNI_0001.gif", new byte[]{1, 2, 3}, "HNI_0001");
+        try {
+            url.get();
+            fail("client errors must not be retried");
+        } catch (ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof UploadException);
+        }
+        assertEquals(1, publisher.close());
+        assertEquals(1, requests.get());
+    }
+
+    public void testQuoteFileName() throws Exception {
+        statuses = new int[]{200};
+        Publisher publisher = new Publisher(new HttpUploader(getURL()), 1, 5, 10);
+        publisher.publish("a\".jpg\r\nX-Injected: 1\".jpg", new byte[]{1, 2, 3}, "HNI_0001").get();
+        assertEquals(0, publisher.close());
+        String body = new String(lastBody, "UTF-8");
+        assertTrue(body.contains("filename=\"a%22.jpg%0D%0AX-Injected: 1%22.jpg\"\r\n"));
+    }
+
+    private URL getURL() throws IOException {
+        return new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/upload");
+    }
+
+    private static byte[] read(InputStream is) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buf = new byte[1024];
+        int read;
+        while (-1 != (read = is.read(buf))) {
+            baos.write(buf, 0, read);
+        }
+        is.close();
+        return baos.toByteArray();
+    }
+}
@@ -15,6 +15,23 @@
  */
 package stereopic;
 
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 import static stereopic.HexUtil.*;
 
 public class SgramTest extends junit.framework.TestCase {
@@ -37,4 +54,558 @@ public class SgramTest extends junit.framework.TestCase {
         assertEquals("b000", hex(b));
         assertEquals(45056, get(b, BIG_ENDIAN));
     }
+
+    public void testParse() throws IOException {
+        ByteBuffer mpo = MPOSeparator.map(new File("HNI_0001.MPO"));
+        JPEGImage[] images = MPOParser.parse(mpo);
+        assertEquals(2, images.length);
+        assertEquals(0, images[0].getOffset());
+        assertEquals(MPEntry.MPType.DISPARITY, images[1].getMPType());
+        assertEquals(mpo.limit(), images[1].getOffset() + images[1].getSize());
+        // each frame starts with SOI
+        assertEquals((byte) 0xd8, images[1].slice(mpo).get(1));
+    }
+
+    public void testExifThumbnail() throws IOException {
+        ByteBuffer mpo = MPOSeparator.map(new File("HNI_0001.MPO"));
+        for (JPEGImage image : MPOParser.parse(mpo)) {
+            ByteBuffer thumbnail = ExifThumbnail.find(image.slice(mpo));
+            assertNotNull(thumbnail);
+            assertEquals((byte) 0xd8, thumbnail.get(1));
+        }
+        // a frame without Exif
+        assertNull(ExifThumbnail.find(ByteBuffer.wrap(new byte[]{(byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xdb, 0, 2})));
+    }
+
+    public void testFramePool() throws IOException {
+        FramePool pool = new FramePool(64 * 1024 * 1024);
+        ByteBuffer mpo = MPOSeparator.map(new File("HNI_0001.MPO"));
+        JPEGImage[] images = MPOParser.parse(mpo);
+        ImageIOCodec codec = new ImageIOCodec();
+        BufferedImage left = codec.decode(new ByteBufferInputStream(images[0].slice(mpo)), pool);
+        BufferedImage expected = codec.decode(new ByteBufferInputStream(images[1].slice(mpo)));
+        pool.release(left);
+        assertTrue(pool.getIdleBytes() > 0);
+        // the right frame is decoded into the buffer the left frame was released to
+        BufferedImage right = codec.decode(new ByteBufferInputStream(images[1].slice(mpo)), pool);
+        assertSame(left, right);
+        assertEquals(0, pool.getIdleBytes());
+        assertEquals(expected.getRGB(100, 100), right.getRGB(100, 100));
+        assertEquals(expected.getRGB(expected.getWidth() - 1, expected.getHeight() - 1)
+                , right.getRGB(right.getWidth() - 1, right.getHeight() - 1));
+    }
+
+    public void testMotionJPEG() throws IOException {
+        ByteBuffer mpo = MPOSeparator.map(new File("HNI_0001.MPO"));
+        JPEGImage[] images = MPOParser.parse(mpo);
+        FrameHeader frameHeader = FrameHeader.read(images[0].slice(mpo));
+        assertEquals(0xffc0, frameHeader.getMarker());
+        assertEquals(3, frameHeader.getComponents());
+
+        File avi = File.createTempFile("sgram", ".avi");
+        avi.deleteOnExit();
+        FileOutputStream fos = new FileOutputStream(avi);
+        try {
+            MotionJPEGWriter.write(new ByteBuffer[]{images[0].slice(mpo), images[1].slice(mpo)}, 30, 3, fos.getChannel());
+        } finally {
+            fos.close();
+        }
+        ByteBuffer buf = MPOSeparator.map(avi).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(0x46464952, buf.getInt(0));
+        assertEquals(buf.limit() - 8, buf.getInt(4));
+        // avih: 300ms per frame, 6 frames, frame size from SOF
+        assertEquals(300000, buf.getInt(32));
+        assertEquals(6, buf.getInt(48));
+        assertEquals(frameHeader.getWidth(), buf.getInt(64));
+        assertEquals(frameHeader.getHeight(), buf.getInt(68));
+
+        // a delay of 0 is written as the shortest frame duration
+        fos = new FileOutputStream(avi);
+        try {
+            MotionJPEGWriter.write(new ByteBuffer[]{images[0].slice(mpo), images[1].slice(mpo)}, 0, 1, fos.getChannel());
+        } finally {
+            fos.close();
+        }
+        assertEquals(10000, MPOSeparator.map(avi).order(ByteOrder.LITTLE_ENDIAN).getInt(32));
+    }
+
+    public void testLosslessStereo() throws IOException {
+        ByteBuffer mpo = MPOSeparator.map(new File("HNI_0001.MPO"));
+        JPEGImage[] images = MPOParser.parse(mpo);
+        ByteBuffer left = images[0].slice(mpo);
+        ByteBuffer right = images[1].slice(mpo);
+        assertTrue(LosslessStereoComposer.isComposable(left, right));
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        LosslessStereoComposer.compose(left, right, baos);
+
+        ImageIOCodec codec = new ImageIOCodec();
+        BufferedImage composed = codec.decode(new ByteArrayInputStream(baos.toByteArray()));
+        BufferedImage l = codec.decode(new ByteBufferInputStream(left));
+        BufferedImage r = codec.decode(new ByteBufferInputStream(right));
+        assertEquals(l.getWidth() + r.getWidth(), composed.getWidth());
+        assertEquals(l.getHeight(), composed.getHeight());
+        // identical coefficients decode to identical pixels, except where chroma upsampling crosses the seam
+        for (int y = 0; y < l.getHeight(); y += 7) {
+            for (int x = 0; x < l.getWidth() - 16; x += 5) {
+                assertEquals(l.getRGB(x, y), composed.getRGB(x, y));
+            }
+            for (int x = 16; x < r.getWidth(); x += 5) {
+                assertEquals(r.getRGB(x, y), composed.getRGB(l.getWidth() + x, y));
+            }
+        }
+    }
+
+    public void testDisparityMapOfTinyFrames() throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            // 1 pixel high at a working width of 640
+            DisparityMap.compute(new BufferedImage(1280, 1, BufferedImage.TYPE_INT_RGB)
+                    , new BufferedImage(1280, 1, BufferedImage.TYPE_INT_RGB), executor);
+            fail();
+        } catch (MPOFormatException expected) {
+            assertEquals(SeparationResult.Status.CORRUPT, expected.getStatus());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    public void testLosslessStereoRejectsExtendedTables() throws IOException {
+        ByteBuffer mpo = MPOSeparator.map(new File("HNI_0001.MPO"));
+        JPEGImage[] images = MPOParser.parse(mpo);
+        ByteBuffer left = renumberHuffmanTables(images[0].slice(mpo));
+        ByteBuffer right = renumberHuffmanTables(images[1].slice(mpo));
+        // tables 2 and 3 decode fine, but cannot be declared baseline
+        ImageIOCodec codec = new ImageIOCodec();
+        assertEquals(codec.decode(new ByteBufferInputStream(images[0].slice(mpo))).getRGB(100, 100)
+                , codec.decode(new ByteBufferInputStream(left)).getRGB(100, 100));
+        assertFalse(LosslessStereoComposer.isComposable(left, right));
+    }
+
+    /**
+     * @return copy of the image with Huffman tables 0 and 1 moved to 2 and 3
+     */
+    private static ByteBuffer renumberHuffmanTables(ByteBuffer jpeg) {
+        ByteBuffer copy = ByteBuffer.allocate(jpeg.remaining()).put(jpeg.duplicate());
+        int position = 2;
+        while (true) {
+            int marker = copy.getShort(position) & 0xffff;
+            int length = copy.getShort(position + 2) & 0xffff;
+            if (0xffc4 == marker) {
+                for (int i = position + 4; i < position + 2 + length; ) {
+                    int tcth = copy.get(i);
+                    copy.put(i, (byte) (tcth + 2));
+                    int count = 0;
+                    for (int j = 1; j <= 16; j++) {
+                        count += copy.get(i + j) & 0xff;
+                    }
+                    i += 1 + 16 + count;
+                }
+            } else if (0xffda == marker) {
+                for (int i = 0, ns = copy.get(position + 4); i < ns; i++) {
+                    int tdta = position + 5 + 2 * i + 1;
+                    copy.put(tdta, (byte) (copy.get(tdta) + 0x22));
+                }
+                break;
+            }
+            position += 2 + length;
+        }
+        copy.flip();
+        return copy;
+    }
+
+    public void testDisparityMap() throws IOException {
+        // random texture, shifted 6 pixels left in the right image
+        Random random = new Random(1);
+        BufferedImage left = new BufferedImage(320, 240, BufferedImage.TYPE_INT_RGB);
+        BufferedImage right = new BufferedImage(320, 240, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < 240; y++) {
+            for (int x = 0; x < 320; x++) {
+                int rgb = random.nextInt(0x1000000);
+                left.setRGB(x, y, rgb);
+                if (x >= 6) {
+                    right.setRGB(x - 6, y, rgb);
+                }
+            }
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            BufferedImage map = DisparityMap.compute(left, right, executor);
+            assertEquals(320, map.getWidth());
+            assertEquals(240, map.getHeight());
+            // disparities from -40 to 40 map to 0 to 255
+            int expected = (6 + 40) * 255 / 80;
+            for (int y = 10; y < 230; y += 20) {
+                for (int x = 50; x < 300; x += 25) {
+                    assertEquals(expected, map.getRaster().getSample(x, y, 0));
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    public void testEstimateFootprint() throws IOException {
+        File file = new File("HNI_0001.MPO");
+        MPOSeparator mpos = new MPOSeparator();
+        // two decoded 640x480 frames and a 450x168 canvas
+        assertEquals(2 * 640 * 480 * 3 + 450 * 168 * 3 * 2, mpos.estimateFootprint(file, false, true, 450));
+        assertTrue(mpos.estimateFootprint(file, true, true, 450) > mpos.estimateFootprint(file, false, true, 450));
+        assertEquals(0, mpos.estimateFootprint(file, false, false, 450));
+        assertTrue(mpos.estimatePreviewFootprint(file, true, true, 450) < mpos.estimateFootprint(file, true, true, 450));
+    }
+
+    public void testJobScheduler() throws Exception {
+        final AtomicLong inUse = new AtomicLong();
+        final AtomicLong maxInUse = new AtomicLong();
+        final AtomicInteger completed = new AtomicInteger();
+        JobScheduler scheduler = new JobScheduler(4, 100 * 1024);
+        for (int i = 0; i < 20; i++) {
+            // a mix of jobs that fit four, two or one at a time
+            final long footprint = (i % 3 + 1) * 25 * 1024 + (i % 3 == 2 ? 25 * 1024 : 0);
+            scheduler.submit(new Runnable() {
+                public void run() {
+                    long used = inUse.addAndGet(footprint);
+                    synchronized (maxInUse) {
+                        maxInUse.set(Math.max(maxInUse.get(), used));
+                    }
+                    try {
+                        Thread.sleep(10);
+                    } catch (InterruptedException ignore) {
+                    }
+                    inUse.addAndGet(-footprint);
+                    completed.incrementAndGet();
+                }
+            }, footprint);
+        }
+        // larger than the whole budget, runs alone
+        scheduler.submit(new Runnable() {
+            public void run() {
+                completed.incrementAndGet();
+            }
+        }, 1024 * 1024);
+        scheduler.close();
+        assertEquals(21, completed.get());
+        assertTrue(maxInUse.get() <= 100 * 1024);
+        assertTrue(maxInUse.get() >= 50 * 1024);
+    }
+
+    public void testArchiveRoundTrip() throws IOException {
+        ByteBuffer mpo = MPOSeparator.map(new File("HNI_0001.MPO"));
+        StringBuilder longName = new StringBuilder();
+        while (longName.length() < 300) {
+            longName.append("DCIM/");
+        }
+        String[] names = {"HNI_0001.MPO", "DCIM/100NIN03/HNI_0001.MPO", longName + "HNI_0001.MPO"};
+        for (String extension : new String[]{".zip", ".tar", ".tar.gz"}) {
+            File file = File.createTempFile("sgram", extension);
+            file.deleteOnExit();
+            ArchiveWriter writer = ArchiveWriter.open(file);
+            for (String name : names) {
+                writer.write(name, new ByteBuffer[]{mpo});
+            }
+            writer.close();
+
+            ArchiveReader reader = ArchiveReader.open(file);
+            try {
+                for (String name : names) {
+                    assertEquals(name, reader.next());
+                    if (!name.startsWith("DCIM/DCIM")) {
+                        // unread entries are skipped
+                        assertEquals(mpo, ByteBuffer.wrap(reader.read()));
+                    }
+                }
+                assertNull(reader.next());
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    public void testCorruptPaxHeader() throws IOException {
+        byte[] content = "1x path=HNI_0001.MPO\n".getBytes("UTF-8");
+        byte[] tar = new byte[512 * 3];
+        System.arraycopy("pax".getBytes("UTF-8"), 0, tar, 0, 3);
+        byte[] size = String.format("%011o", content.length).getBytes("UTF-8");
+        System.arraycopy(size, 0, tar, 124, size.length);
+        tar[156] = 'x';
+        System.arraycopy(content, 0, tar, 512, content.length);
+        File file = File.createTempFile("sgram", ".tar");
+        file.deleteOnExit();
+        FileOutputStream fos = new FileOutputStream(file);
+        fos.write(tar);
+        fos.close();
+        ArchiveReader reader = ArchiveReader.open(file);
+        try {
+            reader.next();
+            fail();
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage().startsWith("corrupt pax header"));
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void testColorMatching() throws IOException {
+        ByteBuffer mpo = MPOSeparator.map(new File("HNI_0001.MPO"));
+        JPEGImage[] images = MPOParser.parse(mpo);
+        ImageIOCodec codec = new ImageIOCodec();
+        BufferedImage left = codec.decode(new ByteBufferInputStream(images[0].slice(mpo)));
+        BufferedImage right = codec.decode(new ByteBufferInputStream(images[1].slice(mpo)));
+        // underexpose and tint the right image
+        for (int y = 0; y < right.getHeight(); y++) {
+            for (int x = 0; x < right.getWidth(); x++) {
+                int rgb = right.getRGB(x, y);
+                right.setRGB(x, y, (((rgb >> 16) & 0xff) * 6 / 10) << 16 | (((rgb >> 8) & 0xff) * 7 / 10) << 8 | (rgb & 0xff) / 2);
+            }
+        }
+        ColorMatcher.match(left, right);
+        int[][] expected = ColorMatcher.histogram(left);
+        int[][] actual = ColorMatcher.histogram(right);
+        for (int channel = 0; channel < 3; channel++) {
+            assertEquals(mean(expected[channel]), mean(actual[channel]), 3.0);
+        }
+    }
+
+    private static double mean(int[] histogram) {
+        long sum = 0;
+        long count = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            sum += (long) i * histogram[i];
+            count += histogram[i];
+        }
+        return (double) sum / count;
+    }
+
+    public void testCrop() throws IOException {
+        assertEquals(new Rectangle(80, 0, 480, 480), new Crop(1, 1, 1).regionOf(640, 480));
+        assertEquals(new Rectangle(160, 120, 320, 240), Crop.parse("0.5", null).regionOf(640, 480));
+        assertEquals(new Rectangle(200, 120, 240, 240), Crop.parse("0.5", "1:1").regionOf(640, 480));
+        assertEquals(new Rectangle(0, 60, 640, 360), Crop.parse(null, "16:9").regionOf(640, 480));
+        for (String[] illegal : new String[][]{{"2", null}, {"NaN", null}, {null, "4x3"}, {null, "a:b"}}) {
+            try {
+                Crop.parse(illegal[0], illegal[1]);
+                fail(illegal[0] + " " + illegal[1]);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+
+        ByteBuffer mpo = MPOSeparator.map(new File("HNI_0001.MPO"));
+        ByteBuffer frame = MPOParser.parse(mpo)[0].slice(mpo);
+        ImageIOCodec codec = new ImageIOCodec();
+        FramePool pool = new FramePool(0);
+        BufferedImage full = codec.decode(new ByteBufferInputStream(frame));
+        Rectangle region = new Rectangle(200, 120, 240, 240);
+        BufferedImage cropped = codec.decode(new ByteBufferInputStream(frame), region, 1, pool);
+        assertEquals(240, cropped.getWidth());
+        assertEquals(240, cropped.getHeight());
+        BufferedImage subsampled = codec.decode(new ByteBufferInputStream(frame), region, 2, pool);
+        assertEquals(120, subsampled.getWidth());
+        for (int y = 0; y < 240; y += 7) {
+            for (int x = 0; x < 240; x += 7) {
+                assertEquals(full.getRGB(region.x + x, region.y + y), cropped.getRGB(x, y));
+            }
+        }
+        assertEquals(full.getRGB(region.x + 2, region.y + 4), subsampled.getRGB(1, 2));
+    }
+
+    public void testDedupIndex() throws IOException {
+        ByteBuffer mpo1 = MPOSeparator.map(new File("HNI_0001.MPO"));
+        ByteBuffer mpo2 = MPOSeparator.map(new File("HNI_0002.MPO"));
+        ByteBuffer copy = ByteBuffer.allocate(mpo1.remaining()).put(mpo1.duplicate());
+        copy.flip();
+        MPOSeparator mpos = new MPOSeparator();
+        String outputs = mpos.describeOutputs(false, false, 0, false, 0);
+        byte[] key1 = DedupIndex.key(slices(mpo1), outputs);
+        byte[] key2 = DedupIndex.key(slices(mpo2), outputs);
+        assertEquals(DedupIndex.KEY_LENGTH, key1.length);
+        assertTrue(Arrays.equals(key1, DedupIndex.key(slices(copy), outputs)));
+        assertFalse(Arrays.equals(key1, key2));
+        // other outputs are not duplicates of this conversion
+        assertFalse(Arrays.equals(key1, DedupIndex.key(slices(mpo1), mpos.describeOutputs(false, true, 50, false, 0))));
+
+        File file = File.createTempFile("sgram", ".idx");
+        file.deleteOnExit();
+        file.delete();
+        DedupIndex index = new DedupIndex(file);
+        assertNull(index.get(key1));
+        index.put(key1, "HNI_0001.MPO");
+        index.put(key1, "copy.MPO");
+        index.close();
+
+        // reloaded, and a record cut short is dropped
+        FileOutputStream fos = new FileOutputStream(file, true);
+        fos.write(key2, 0, 5);
+        fos.close();
+        index = new DedupIndex(file);
+        assertEquals(1, index.size());
+        assertEquals("HNI_0001.MPO", index.get(key1));
+        index.put(key2, "HNI_0002.MPO");
+        index.close();
+        long length = file.length();
+
+        // a record with a malformed path is dropped like a truncated one
+        fos = new FileOutputStream(file, true);
+        fos.write(key1);
+        fos.write(new byte[]{0, 2, (byte) 0xff, (byte) 0xff});
+        fos.close();
+        index = new DedupIndex(file);
+        assertEquals("HNI_0002.MPO", index.get(key2));
+        assertEquals(length, file.length());
+        index.close();
+
+        mpos.setDedupIndex(index = new DedupIndex(file));
+        SeparationResult result = mpos.separate(new File("copy.MPO"), copy, null, false, false, 0, false, 0);
+        assertEquals(SeparationResult.Status.DUPLICATE, result.getStatus());
+        assertEquals("HNI_0001.MPO", result.getDuplicateOf());
+        assertTrue(result.isSucceeded());
+        // the file the index points at is converted again
+        result = mpos.separate(new File("HNI_0001.MPO"), mpo1, null, false, false, 0, false, 0);
+        index.close();
+        assertEquals(SeparationResult.Status.SEPARATED, result.getStatus());
+    }
+
+    private static ByteBuffer[] slices(ByteBuffer mpo) throws IOException {
+        JPEGImage[] images = MPOParser.parse(mpo);
+        ByteBuffer[] frames = new ByteBuffer[images.length];
+        for (int i = 0; i < images.length; i++) {
+            frames[i] = images[i].slice(mpo);
+        }
+        return frames;
+    }
+
+    public void testNotMPO() throws IOException {
+        // a plain JPEG: SOI, APP0, then DQT
+        File jpeg = write(new byte[]{(byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xe0, 0, 4, 0, 0
+                , (byte) 0xff, (byte) 0xdb, 0, 2});
+        SeparationResult result = new MPOSeparator().separate(jpeg, new FileOutput(jpeg.getPath(), true)
+                , false, false, 30, false, 450);
+        assertEquals(SeparationResult.Status.NOT_MPO, result.getStatus());
+    }
+
+    public void testSingleImageMPO() throws IOException {
+        ByteBuffer mpo = MPOSeparator.map(new File("HNI_0001.MPO"));
+        File single = File.createTempFile("sgram", ".MPO");
+        single.deleteOnExit();
+        FileOutputStream fos = new FileOutputStream(single);
+        try {
+            MPOWriter.write(new ByteBuffer[]{MPOParser.parse(mpo)[0].slice(mpo)}, MPEntry.MPType.DISPARITY
+                    , fos.getChannel());
+        } finally {
+            fos.close();
+        }
+        MPOSeparator mpos = new MPOSeparator();
+        assertEquals(SeparationResult.Status.NOT_MPO, mpos.separate(single, new FileOutput(single.getPath(), true)
+                , true, true, 30, true, 450).getStatus());
+        assertEquals(SeparationResult.Status.NOT_MPO, mpos.preview(single, null, new FileOutput(single.getPath(), true)
+                , true, 30, true, 450).getStatus());
+    }
+
+    public void testCorruptMPEntry() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile("HNI_0001.MPO", "r");
+        byte[] head = new byte[6000];
+        try {
+            raf.readFully(head);
+        } finally {
+            raf.close();
+        }
+        // claims 2 images, but the file ends inside the first
+        File truncated = write(head);
+        SeparationResult result = new MPOSeparator().separate(truncated, new FileOutput(truncated.getPath(), true)
+                , false, false, 30, false, 450);
+        assertEquals(SeparationResult.Status.CORRUPT, result.getStatus());
+    }
+
+    public void testSelectCodec() {
+        assertEquals("imageio", JPEGCodecs.select("imageio").getName());
+        assertEquals("imageio", JPEGCodecs.select(ImageIOCodec.class.getName()).getName());
+        // unknown codecs fall back to ImageIO
+        assertEquals("imageio", JPEGCodecs.select("no-such-codec").getName());
+    }
+
+    public void testAssembleRoundTrip() throws IOException {
+        File dir = createTempDir();
+        try {
+            assembleRoundTrip(dir);
+        } finally {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    private void assembleRoundTrip(File dir) throws IOException {
+        File mpo = new File(dir, "HNI_0001.MPO");
+        write(mpo, MPOSeparator.map(new File("HNI_0001.MPO")));
+        assertTrue(new MPOSeparator().separate(mpo, new FileOutput(mpo.getPath(), true)
+                , true, false, 30, false, 450).isSeparated());
+        File left = new File(dir, "HNI_0001-L.jpg");
+        File right = new File(dir, "HNI_0001-R.jpg");
+
+        File assembled = new File(dir, "assembled.MPO");
+        MPOWriter.write(new File[]{left, right}, MPEntry.MPType.DISPARITY, assembled);
+        ByteBuffer buf = MPOSeparator.map(assembled);
+        JPEGImage[] images = MPOParser.parse(buf);
+        assertEquals(2, images.length);
+        assertEquals(MPEntry.MPType.DISPARITY, images[0].getMPType());
+        assertEquals(MPEntry.MPType.DISPARITY, images[1].getMPType());
+        assertEquals(buf.limit(), images[1].getOffset() + images[1].getSize());
+        // every image has an MP Attribute IFD with ConvergenceAngle and BaselineLength
+        for (JPEGImage image : images) {
+            assertTrue(contains(image.slice(buf), new byte[]{(byte) 0xb2, 0x05, 0, 10, 0, 0, 0, 1}));
+            assertTrue(contains(image.slice(buf), new byte[]{(byte) 0xb2, 0x06, 0, 5, 0, 0, 0, 1}));
+        }
+        ImageIOCodec codec = new ImageIOCodec();
+        assertEquals(codec.decode(new ByteBufferInputStream(MPOSeparator.map(right))).getWidth()
+                , codec.decode(new ByteBufferInputStream(images[1].slice(buf))).getWidth());
+
+        // separating the assembled MPO and assembling again yields the same bytes
+        assertTrue(new MPOSeparator().separate(assembled, new FileOutput(assembled.getPath(), true)
+                , true, false, 30, false, 450).isSeparated());
+        File reassembled = new File(dir, "reassembled.MPO");
+        MPOWriter.write(new File[]{new File(dir, "assembled-L.jpg"), new File(dir, "assembled-R.jpg")}
+                , MPEntry.MPType.DISPARITY, reassembled);
+        assertEquals(buf, MPOSeparator.map(reassembled));
+    }
+
+    private static boolean contains(ByteBuffer buf, byte[] pattern) {
+        for (int i = buf.position(); i + pattern.length <= buf.limit(); i++) {
+            int j = 0;
+            while (j < pattern.length && buf.get(i + j) == pattern[j]) {
+                j++;
+            }
+            if (j == pattern.length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private File createTempDir() throws IOException {
+        File dir = File.createTempFile("sgram", "");
+        dir.delete();
+        dir.mkdir();
+        return dir;
+    }
+
+    private void write(File file, ByteBuffer content) throws IOException {
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            fos.getChannel().write(content);
+        } finally {
+            fos.close();
+        }
+    }
+
+    private File write(byte[] content) throws IOException {
+        File file = File.createTempFile("sgram", ".MPO");
+        file.deleteOnExit();
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            fos.write(content);
+        } finally {
+            fos.close();
+        }
+        return file;
+    }
 }
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2011 Yusuke Yamamoto
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stereopic;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class ShardedBatchTest extends junit.framework.TestCase {
+    private static final int FILES = 40;
+    private static final int SHARD_SIZE = 4;
+    private File directory;
+    private List<File> files;
+
+    public ShardedBatchTest(String name) {
+        super(name);
+    }
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        directory = File.createTempFile("sgram", "shards");
+        directory.delete();
+        directory.mkdirs();
+        files = files(FILES);
+    }
+
+    protected void tearDown() throws Exception {
+        File[] children = directory.listFiles();
+        if (null != children) {
+            for (File child : children) {
+                child.delete();
+            }
+        }
+        directory.delete();
+        super.tearDown();
+    }
+
+    public void testTakeOverExpiredLease() throws Exception {
+        ShardedBatch crashed = new ShardedBatch(directory, 50, 300);
+        ShardedBatch survivor = new ShardedBatch(directory, 50, 300);
+        assertTrue(crashed.claim(0));
+        assertFalse(survivor.claim(0));
+        assertTrue(survivor.claim(1));
+        survivor.release(1);
+
+        // nobody touches the lease of shard 0 anymore
+        long deadline = System.currentTimeMillis() + 5000;
+        boolean claimed = false;
+        while (!claimed && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+            claimed = survivor.claim(0);
+        }
+        assertTrue(claimed);
+        // the crashed worker must not delete the lease it lost
+        crashed.release(0);
+        assertTrue(new File(directory, "shard-0.lease").exists());
+        survivor.release(0);
+        assertFalse(new File(directory, "shard-0.lease").exists());
+    }
+
+    public void testMultipleProcesses() throws Exception {
+        // the first worker crashes in the middle of its first shard, leaving its lease behind
+        List<Process> workers = new ArrayList<Process>();
+        workers.add(startWorker(true));
+        long deadline = System.currentTimeMillis() + 30000;
+        while (!new File(directory, "shard-0.lease").exists() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        workers.add(startWorker(false));
+        workers.add(startWorker(false));
+        assertEquals(1, workers.get(0).waitFor());
+        assertEquals(0, workers.get(1).waitFor());
+        assertEquals(0, workers.get(2).waitFor());
+
+        List<String> log = ShardedBatch.readCompletionLog(directory);
+        Collections.sort(log);
+        List<String> expected = new ArrayList<String>();
+        for (File file : files) {
+            expected.add(file.getName() + "\tSEPARATED");
+        }
+        assertEquals(expected, log);
+        for (File file : directory.listFiles()) {
+            assertTrue(file.getName(), file.getName().endsWith(".done"));
+        }
+    }
+
+    private Process startWorker(boolean crash) throws IOException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path")
+                , ShardedBatchTest.class.getName(), directory.getAbsolutePath(), String.valueOf(crash));
+        builder.redirectErrorStream(true);
+        final Process process = builder.start();
+        // drain the output so that the worker never blocks on a full pipe
+        new Thread() {
+            public void run() {
+                try {
+                    while (-1 != process.getInputStream().read()) {
+                    }
+                } catch (IOException ignore) {
+                }
+            }
+        }.start();
+        return process;
+    }
+
+    private static List<File> files(int count) {
+        List<File> files = new ArrayList<File>();
+        for (int i = 0; i < count; i++) {
+            files.add(new File("HNI_" + (1000 + i) + ".MPO"));
+        }
+        return files;
+    }
+
+    /**
+     * Worker process of {@link #testMultipleProcesses}.
+     */
+    public static void main(String[] args) throws Exception {
+        final boolean crash = Boolean.parseBoolean(args[1]);
+        ShardedBatch batch = new ShardedBatch(new File(args[0]), 100, 1000);
+        batch.run(files(FILES), SHARD_SIZE, new ShardedBatch.ShardProcessor() {
+            public List<SeparationResult> process(List<File> files) throws InterruptedException {
+                List<SeparationResult> results = new ArrayList<SeparationResult>();
+                for (File file : files) {
+                    if (crash && results.size() == files.size() / 2) {
+                        Runtime.getRuntime().halt(1);
+                    }
+                    Thread.sleep(20);
+                    results.add(SeparationResult.separated(file, new JPEGImage[0]));
+                }
+                return results;
+            }
+        });
+        System.exit(0);
+    }
+}